@@ -0,0 +1,60 @@
+package benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import javax.imageio.ImageIO;
+
+final class BenchmarkImages {
+	/*
+	Sample images of the benchmarks, read from the uploads folder of the Node client.
+	The folder can be changed with -Duploads.dir=<path>.
+	There are no PNG samples, so the PNG image is the GIF sample encoded as PNG.
+	*/
+	private static final File UPLOADS = new File(System.getProperty("uploads.dir", "../NodeClient/uploads"));
+
+	private BenchmarkImages() {
+	}
+
+	static byte[] bytes(String fileName) throws IOException {
+		return Files.readAllBytes(new File(UPLOADS, fileName).toPath());
+	}	// return the file as it is uploaded by the client
+
+	static byte[] sample(String imgType) throws IOException {
+		// return a sample image of the type
+		switch (imgType.toUpperCase()) {
+			case "JPG":
+				return bytes("spirited_away.jpg");
+			case "GIF":
+				return bytes("eva.gif");
+			case "PNG":
+				return encode(ImageIO.read(new File(UPLOADS, "eva.gif")), "png");
+			default:
+				throw new IllegalArgumentException("No sample image of type " + imgType);
+		}
+	}
+
+	static BufferedImage transparentPoster(int imageType) throws IOException {
+		// poster with a transparent border and a half transparent band, in the requested layout
+		BufferedImage poster = ImageIO.read(new File(UPLOADS, "garden_of_words.jpg"));
+		int w = poster.getWidth();
+		int h = poster.getHeight();
+		BufferedImage image = new BufferedImage(w, h, imageType);
+		Graphics2D g = image.createGraphics();
+		g.drawImage(poster, w / 10, h / 10, w * 8 / 10, h * 8 / 10, null);
+		g.setColor(new Color(0, 0, 0, 128));
+		g.fillRect(0, h / 2, w, h / 10);
+		g.dispose();
+		return image;
+	}
+
+	static byte[] encode(BufferedImage image, String imgType) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(image, imgType, output);
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import com.google.protobuf.ByteString;
+import conversion.ConversionReply;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+Accumulation of the received chunks and emission of the reply chunks.
+The "copy" benchmarks are the previous loops (ByteArrayOutputStream and 1 KB copies),
+the other ones are the loops used by Converter and ChunkedReplySender.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkBenchmark {
+
+	@Param({"spirited_away.jpg", "eva_high_resolution.jpg"})
+	public String fileName;
+
+	private List<ByteString> chunks;	// 1 KB chunks, as sent by the Node client
+	private ByteString image;
+
+	@Setup
+	public void setup() throws IOException {
+		byte[] bytes = BenchmarkImages.bytes(fileName);
+		chunks = new ArrayList<>();
+		for (int offset = 0; offset < bytes.length; offset += 1024) {
+			chunks.add(ByteString.copyFrom(bytes, offset, Math.min(1024, bytes.length - offset)));
+		}
+		image = ByteString.copyFrom(bytes);
+	}
+
+	@Benchmark
+	public byte[] accumulateCopy() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for (ByteString chunk : chunks) {
+			baos.write(chunk.toByteArray());
+		}
+		return baos.toByteArray();
+	}
+
+	@Benchmark
+	public ByteString accumulateConcat() {
+		ByteString file = ByteString.EMPTY;
+		for (ByteString chunk : chunks) {
+			file = file.concat(chunk);
+		}
+		return file;
+	}
+
+	@Benchmark
+	public void emitCopy(Blackhole blackhole) throws IOException {
+		BufferedInputStream input = new BufferedInputStream(new ByteArrayInputStream(image.toByteArray()));
+		byte[] buffer = new byte[1024];
+		int length;
+		while ((length = input.read(buffer, 0, buffer.length)) != -1) {
+			blackhole.consume(ConversionReply.newBuilder().setFile(ByteString.copyFrom(buffer, 0, length)).build());
+		}
+	}
+
+	@Benchmark
+	public void emitSubstring(Blackhole blackhole) {
+		int chunkSize = Math.max(32 * 1024, Math.min(256 * 1024, image.size() / 8));
+		for (int offset = 0; offset < image.size(); offset += chunkSize) {
+			int end = Math.min(offset + chunkSize, image.size());
+			blackhole.consume(ConversionReply.newBuilder().setFile(image.substring(offset, end)).build());
+		}
+	}
+}
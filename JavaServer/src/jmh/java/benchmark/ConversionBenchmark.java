@@ -0,0 +1,76 @@
+package benchmark;
+
+import com.google.protobuf.ByteString;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Decode + flatten + encode of the sample images, for each origin and target type (same steps of Converter).
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConversionBenchmark {
+
+	@Param({"PNG", "JPG", "GIF"})
+	public String typeOrigin;
+
+	@Param({"PNG", "JPG", "GIF"})
+	public String typeTarget;
+
+	private ByteString image;
+	private Object conversionEngine;		// ImageIOConversionEngine
+	private Object alphaFlattener;			// AlphaFlattener
+	private boolean targetAlpha;			// true if the target type keeps the transparent pixels
+	private MethodHandle read;
+	private MethodHandle write;
+	private MethodHandle isTransparent;
+	private MethodHandle flatten;
+	private MethodHandle release;
+
+	@Setup
+	public void setup() throws Throwable {
+		image = ByteString.copyFrom(BenchmarkImages.sample(typeOrigin));
+		conversionEngine = ServerClasses.newInstance("ImageIOConversionEngine", new Class<?>[0]);
+		alphaFlattener = ServerClasses.method("AlphaFlattener", "fromConfiguration").invoke();
+		targetAlpha = (boolean) ServerClasses.method("AlphaFlattener", "supportsAlpha", String.class).invoke(typeTarget);
+		read = ServerClasses.method("ImageIOConversionEngine", "read", InputStream.class, String.class);
+		write = ServerClasses.method("ImageIOConversionEngine", "write", BufferedImage.class, String.class, OutputStream.class);
+		isTransparent = ServerClasses.method("AlphaFlattener", "isTransparent", BufferedImage.class);
+		flatten = ServerClasses.method("AlphaFlattener", "flatten", BufferedImage.class, Color.class);
+		release = ServerClasses.method("AlphaFlattener", "release", BufferedImage.class);
+	}
+
+	@Benchmark
+	public ByteString convert() throws Throwable {
+		ByteString.Output imageEncoded = ByteString.newOutput(32 * 1024);
+		BufferedImage imageReceived = (BufferedImage) read.invoke(conversionEngine, image.newInput(), typeOrigin);
+		boolean flattened = !targetAlpha && (boolean) isTransparent.invoke(imageReceived);
+		if (flattened) {
+			imageReceived = (BufferedImage) flatten.invoke(alphaFlattener, imageReceived, Color.WHITE);
+		}
+		write.invoke(conversionEngine, imageReceived, typeTarget, (OutputStream) imageEncoded);
+		if (flattened) {
+			release.invoke(alphaFlattener, imageReceived);
+		}
+		return imageEncoded.toByteString();
+	}
+}
@@ -0,0 +1,87 @@
+package benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Filling of the transparent pixels: Graphics2D pass (fillTransparentPixels, the one used by the Converter before
+AlphaFlattener) against AlphaFlattener,
+for the layouts produced by the decoders (int ARGB, 8 bit ABGR, 8 bit palette).
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlattenBenchmark {
+
+	@Param({"INT_ARGB", "4BYTE_ABGR", "BYTE_INDEXED"})
+	public String layout;
+
+	private BufferedImage image;
+	private Object alphaFlattener;			// AlphaFlattener
+	private MethodHandle flatten;
+	private MethodHandle release;
+
+	@Setup
+	public void setup() throws Throwable {
+		BufferedImage argb = BenchmarkImages.transparentPoster(BufferedImage.TYPE_INT_ARGB);
+		switch (layout) {
+			case "INT_ARGB":
+				image = argb;
+				break;
+			case "4BYTE_ABGR":
+				image = BenchmarkImages.transparentPoster(BufferedImage.TYPE_4BYTE_ABGR);
+				break;
+			default:
+				// palette image with a transparent index, as decoded from a GIF
+				image = ImageIO.read(new ByteArrayInputStream(BenchmarkImages.encode(argb, "gif")));
+		}
+		alphaFlattener = ServerClasses.method("AlphaFlattener", "fromConfiguration").invoke();
+		flatten = ServerClasses.method("AlphaFlattener", "flatten", BufferedImage.class, Color.class);
+		release = ServerClasses.method("AlphaFlattener", "release", BufferedImage.class);
+	}
+
+	@Benchmark
+	public BufferedImage graphics2D() {
+		return fillTransparentPixels(image, Color.WHITE);
+	}
+
+	@Benchmark
+	public int alphaFlattener() throws Throwable {
+		BufferedImage flattened = (BufferedImage) flatten.invoke(alphaFlattener, image, Color.WHITE);
+		int pixel = flattened.getRGB(0, 0);
+		release.invoke(alphaFlattener, flattened);
+		return pixel;
+	}
+
+	static BufferedImage fillTransparentPixels(BufferedImage image, Color fillColor) {
+		// baseline: the image drawn over the fill color in a new RGB image
+		int w = image.getWidth();
+		int h = image.getHeight();
+		BufferedImage image2 = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image2.createGraphics();
+		g.setColor(fillColor);
+		g.fillRect(0, 0, w, h);
+		g.drawRenderedImage(image, null);
+		g.dispose();
+		return image2;
+	}
+}
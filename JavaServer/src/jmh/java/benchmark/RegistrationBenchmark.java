@@ -0,0 +1,55 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import registration.Parameter_pair;
+
+/*
+Negotiation of the parameters of a client, with the parameters of the configuration files.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrationBenchmark {
+
+	private Object registrator;				// Registrator
+	private MethodHandle negotiateParameters;
+	private List<Parameter_pair> desiredParameters;
+	private Map<String, Integer> acceptableParameters;
+
+	@Setup
+	public void setup() {
+		registrator = ServerClasses.newInstance("Registrator", new Class<?>[] {ServerClasses.find("RegistryStore")}, (Object) null);
+		negotiateParameters = ServerClasses.method("Registrator", "negotiateParameters", String.class, List.class, Map.class);
+		desiredParameters = new ArrayList<>();
+		desiredParameters.add(Parameter_pair.newBuilder().setImgType("PNG").setImgMaxSize(1000).build());
+		desiredParameters.add(Parameter_pair.newBuilder().setImgType("GIF").setImgMaxSize(4000).build());
+		desiredParameters.add(Parameter_pair.newBuilder().setImgType("JPG").setImgMaxSize(0).build());
+		acceptableParameters = new ConcurrentHashMap<>();
+		acceptableParameters.put("PNG", 1000);
+		acceptableParameters.put("JPG", 5000);
+		acceptableParameters.put("GIF", 2000);
+	}
+
+	@Benchmark
+	public Object negotiateParameters() throws Throwable {
+		return negotiateParameters.invoke(registrator, "benchmark", desiredParameters, acceptableParameters);
+	}
+}
@@ -0,0 +1,138 @@
+package benchmark;
+
+import com.google.protobuf.ByteString;
+import conversion.ConversionReply;
+import conversion.ConversionRequest;
+import conversion.ConverterGrpc;
+import conversion.MetadataRequest;
+import io.grpc.BindableService;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import registration.ClientRegistrationRequest;
+import registration.Parameter_pair;
+import registration.RegistratorGrpc;
+
+/*
+Full gRPC round trip over an in-process server: registration once, then "streams" concurrent
+fileConvert calls of a JPG poster to PNG, sent in 1 KB chunks like the Node client.
+The conversion cache is disabled, so every call is converted.
+*/
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+	@Param({"1", "4", "16"})
+	public int streams;
+
+	private static final String CLIENT_ID = "benchmark";
+	private Object conversionExecutor;		// ConversionExecutor
+	private Server server;
+	private ManagedChannel channel;
+	private List<ByteString> chunks;
+
+	@Setup
+	public void setup() throws Throwable {
+		Object acceptable = ServerClasses.newInstance("AcceptableParameters", new Class<?>[] {Map.class, Map.class},
+				Collections.singletonMap("JPG", 0), Collections.singletonMap("PNG", 0));
+		ServerClasses.method("SharedParameters", "setAcceptableParameters", acceptable.getClass()).invoke(acceptable);
+		String serverName = InProcessServerBuilder.generateName();
+		conversionExecutor = ServerClasses.newInstance("ConversionExecutor", new Class<?>[] {int.class, int.class, boolean.class},
+				Runtime.getRuntime().availableProcessors(), 1024, false);
+		Object converter = ServerClasses.newInstance("Converter", new Class<?>[] {
+				ServerClasses.find("ConversionExecutor"), ServerClasses.find("ConversionCache"), ServerClasses.find("ConversionEngine")},
+				conversionExecutor, null, ServerClasses.newInstance("ImageIOConversionEngine", new Class<?>[0]));
+		server = InProcessServerBuilder.forName(serverName)
+				.addService((BindableService) converter)
+				.addService((BindableService) ServerClasses.newInstance("Registrator", new Class<?>[] {ServerClasses.find("RegistryStore")}, (Object) null))
+				.build()
+				.start();
+		channel = InProcessChannelBuilder.forName(serverName).build();
+		RegistratorGrpc.newBlockingStub(channel).registerClient(ClientRegistrationRequest.newBuilder()
+				.setClientId(CLIENT_ID)
+				.addDesiredInputParameters(Parameter_pair.newBuilder().setImgType("JPG").setImgMaxSize(0))
+				.addDesiredOutputParameters(Parameter_pair.newBuilder().setImgType("PNG").setImgMaxSize(0))
+				.build());
+		byte[] bytes = BenchmarkImages.bytes("spirited_away.jpg");
+		chunks = new ArrayList<>();
+		for (int offset = 0; offset < bytes.length; offset += 1024) {
+			chunks.add(ByteString.copyFrom(bytes, offset, Math.min(1024, bytes.length - offset)));
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Throwable {
+		channel.shutdownNow();
+		server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		ServerClasses.method("ConversionExecutor", "shutdown").invoke(conversionExecutor);
+	}
+
+	@Benchmark
+	public int convert() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(streams);
+		final AtomicInteger bytesReceived = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		ConverterGrpc.ConverterStub stub = ConverterGrpc.newStub(channel);
+		for (int i = 0; i < streams; i++) {
+			StreamObserver<ConversionRequest> request = stub.fileConvert(new StreamObserver<ConversionReply>() {
+				@Override
+				public void onNext(ConversionReply reply) {
+					if (reply.hasMeta() && !reply.getMeta().getSuccess()) {
+						failed.incrementAndGet();
+					}
+					bytesReceived.addAndGet(reply.getFile().size());
+				}
+
+				@Override
+				public void onError(Throwable t) {
+					failed.incrementAndGet();
+					done.countDown();
+				}
+
+				@Override
+				public void onCompleted() {
+					done.countDown();
+				}
+			});
+			request.onNext(ConversionRequest.newBuilder().setMeta(MetadataRequest.newBuilder()
+					.setClientId(CLIENT_ID)
+					.setFileTypeOrigin("jpg")
+					.setFileTypeTarget("png"))
+					.build());
+			for (ByteString chunk : chunks) {
+				request.onNext(ConversionRequest.newBuilder().setFile(chunk).build());
+			}
+			request.onCompleted();
+		}
+		if (!done.await(1, TimeUnit.MINUTES) || failed.get() > 0) {
+			throw new IllegalStateException("Conversion failed or timed out");
+		}
+		return bytesReceived.get();
+	}
+}
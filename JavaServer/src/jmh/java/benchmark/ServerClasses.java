@@ -0,0 +1,45 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+
+final class ServerClasses {
+	/*
+	The server classes are in the default package, which cannot be imported from a named package
+	(and JMH requires the benchmarks to be in a named package), so they are reached by reflection.
+	Method handles are created once in the benchmark setup, the benchmarks only invoke them.
+	*/
+	private ServerClasses() {
+	}
+
+	static Class<?> find(String className) {
+		try {
+			return Class.forName(className);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("Server class not found: " + className, e);
+		}
+	}
+
+	static Object newInstance(String className, Class<?>[] parameterTypes, Object... args) {
+		try {
+			Constructor<?> constructor = find(className).getDeclaredConstructor(parameterTypes);
+			constructor.setAccessible(true);
+			return constructor.newInstance(args);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create " + className, e);
+		}
+	}
+
+	static MethodHandle method(String className, String name, Class<?>... parameterTypes) {
+		// handle of a method of the class, also if it is not public
+		try {
+			Method method = find(className).getDeclaredMethod(name, parameterTypes);
+			method.setAccessible(true);
+			return MethodHandles.lookup().unreflect(method);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Method not found: " + className + "." + name, e);
+		}
+	}
+}
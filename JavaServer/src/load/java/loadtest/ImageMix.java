@@ -0,0 +1,159 @@
+package loadtest;
+
+import com.google.protobuf.ByteString;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+final class ImageMix {
+	/*
+	Conversions sent by the load generator: each one is an origin:target pair chosen by its weight and
+	an image of the origin type chosen among the files of the uploads folder, so the sizes vary as the real ones.
+	There are no PNG samples in the uploads of the Node client: without PNG files the other images are encoded as PNG
+	(the ones bigger than MAX_ENCODED_PNG once encoded are skipped, they would be much bigger than the other samples).
+	The images are split in chunks once, the same chunks are sent by every call.
+	*/
+	static final class Image {
+		final String name;
+		final String type;
+		final int size;
+		final List<ByteString> chunks;
+
+		Image(String name, String type, byte[] bytes, int chunkSize) {
+			this.name = name;
+			this.type = type;
+			this.size = bytes.length;
+			this.chunks = new ArrayList<>();
+			for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+				chunks.add(ByteString.copyFrom(bytes, offset, Math.min(chunkSize, bytes.length - offset)));
+			}
+		}
+	}
+
+	static final class Conversion {
+		final Image image;
+		final String target;
+
+		Conversion(Image image, String target) {
+			this.image = image;
+			this.target = target;
+		}
+	}
+
+	private static final int MAX_ENCODED_PNG = 4 * 1024 * 1024;
+
+	private final Map<String, List<Image>> images = new LinkedHashMap<>();	// images of each type
+	private final List<String[]> pairs = new ArrayList<>();	// origin and target of each pair
+	private final double[] cumulativeWeights;
+
+	ImageMix(String mix, File uploads, int chunkSize) throws IOException {
+		double total = 0;
+		List<Double> weights = new ArrayList<>();
+		for (String entry : mix.split(",")) {
+			String[] pairWeight = entry.trim().split("=");
+			String[] pair = pairWeight[0].toUpperCase(Locale.ROOT).split(":");
+			if (pair.length != 2) {
+				throw new IllegalArgumentException("Invalid mix entry: " + entry + " (origin:target=weight)");
+			}
+			pairs.add(pair);
+			total += pairWeight.length > 1 ? Double.parseDouble(pairWeight[1]) : 1;
+			weights.add(total);
+		}
+		cumulativeWeights = new double[weights.size()];
+		for (int i = 0; i < cumulativeWeights.length; i++) {
+			cumulativeWeights[i] = weights.get(i) / total;
+		}
+		load(uploads, chunkSize);
+		for (String[] pair : pairs) {
+			if (!images.containsKey(pair[0])) {
+				throw new IllegalArgumentException("No image of type " + pair[0] + " in " + uploads);
+			}
+		}
+	}
+
+	Conversion next(Random random) {
+		double r = random.nextDouble();
+		int i = 0;
+		while (i < cumulativeWeights.length - 1 && r >= cumulativeWeights[i]) {
+			i++;
+		}
+		List<Image> candidates = images.get(pairs.get(i)[0]);
+		return new Conversion(candidates.get(random.nextInt(candidates.size())), pairs.get(i)[1]);
+	}
+
+	List<String> getTypes() {
+		// all the origin and target types, to register the clients
+		List<String> types = new ArrayList<>();
+		for (String[] pair : pairs) {
+			for (String type : pair) {
+				if (!types.contains(type)) {
+					types.add(type);
+				}
+			}
+		}
+		return types;
+	}
+
+	String describe() {
+		StringBuilder description = new StringBuilder();
+		for (Map.Entry<String, List<Image>> entry : images.entrySet()) {
+			long bytes = 0;
+			for (Image image : entry.getValue()) {
+				bytes += image.size;
+			}
+			description.append(entry.getKey()).append(": ").append(entry.getValue().size()).append(" images, ")
+					.append(bytes / entry.getValue().size() / 1024).append(" KB average; ");
+		}
+		return description.toString();
+	}
+
+	private void load(File uploads, int chunkSize) throws IOException {
+		File[] files = uploads.listFiles();
+		if (files == null) {
+			throw new IOException("Uploads folder not found: " + uploads);
+		}
+		for (File file : files) {
+			String type = typeOf(file.getName());
+			if (type != null) {
+				images.computeIfAbsent(type, t -> new ArrayList<>())
+						.add(new Image(file.getName(), type, Files.readAllBytes(file.toPath()), chunkSize));
+			}
+		}
+		if (!images.containsKey("PNG")) {
+			List<Image> encoded = new ArrayList<>();
+			for (File file : files) {
+				if (typeOf(file.getName()) != null) {
+					ByteArrayOutputStream output = new ByteArrayOutputStream();
+					ImageIO.write(ImageIO.read(file), "png", output);
+					if (output.size() > MAX_ENCODED_PNG) {
+						continue;
+					}
+					encoded.add(new Image(file.getName() + ".png", "PNG", output.toByteArray(), chunkSize));
+				}
+			}
+			images.put("PNG", encoded);
+		}
+	}
+
+	private static String typeOf(String fileName) {
+		String name = fileName.toLowerCase(Locale.ROOT);
+		if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+			return "JPG";
+		}
+		if (name.endsWith(".gif")) {
+			return "GIF";
+		}
+		if (name.endsWith(".png")) {
+			return "PNG";
+		}
+		return null;
+	}
+}
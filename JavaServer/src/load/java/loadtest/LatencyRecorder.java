@@ -0,0 +1,79 @@
+package loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+final class LatencyRecorder {
+	/*
+	Latency histogram in microseconds with a relative error below 3%, for the percentiles of the load generator.
+	The values under 64 us have their own bucket, the bigger ones are in 32 linear buckets for each power of two.
+	Recording only increments an array of counters, it can be called by many threads.
+	*/
+	private static final int LINEAR = 64;
+	private static final int SUB_BUCKETS = 32;
+	private static final int BUCKETS = LINEAR + (63 - 6) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets.incrementAndGet(index(micros));
+		count.increment();
+		sum.add(micros);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	double getMeanMillis() {
+		long n = count.sum();
+		return n == 0 ? 0 : sum.sum() / 1000.0 / n;
+	}
+
+	double percentileMillis(double percentile) {
+		// upper bound of the bucket with the value at the percentile (0 - 100)
+		long n = count.sum();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile / 100 * n);
+		long cumulative = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			cumulative += buckets.get(i);
+			if (cumulative >= Math.max(1, rank)) {
+				return upperBound(i) / 1000.0;
+			}
+		}
+		return upperBound(BUCKETS - 1) / 1000.0;
+	}
+
+	double maxMillis() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (buckets.get(i) > 0) {
+				return upperBound(i) / 1000.0;
+			}
+		}
+		return 0;
+	}
+
+	private static int index(long micros) {
+		if (micros < LINEAR) {
+			return (int) micros;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);		// >= 6
+		int sub = (int) (micros >>> (exponent - 5)) & (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, LINEAR + (exponent - 6) * SUB_BUCKETS + sub);
+	}
+
+	private static long upperBound(int index) {
+		if (index < LINEAR) {
+			return index;
+		}
+		int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+		int sub = (index - LINEAR) % SUB_BUCKETS;
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 5)) - 1;
+	}
+}
@@ -0,0 +1,264 @@
+package loadtest;
+
+import com.google.protobuf.ByteString;
+import conversion.ConversionReply;
+import conversion.ConversionRequest;
+import conversion.ConverterGrpc;
+import conversion.MetadataRequest;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import registration.ClientIdRequest;
+import registration.ClientRegistrationRequest;
+import registration.ClientRegistrationResponse;
+import registration.Parameter_pair;
+import registration.RegistratorGrpc;
+
+public final class LoadGenerator {
+	/*
+	Load and soak test of the conversion server: mvn -Pload verify -Dload.args="--clients=50 --duration=600"
+	(the options are in LoadOptions). The clients are registered with a new clientId at every run, then:
+	- closed loop: each client has concurrency fileConvert calls in flight, the next one starts when one ends,
+	  so the load adapts to the server and the latency is the one of a single call
+	- open loop: the calls start at a fixed rate whatever the responses, as many independent users; the latency is
+	  measured from the time the call should have started, so a server that falls behind shows it (no coordinated omission)
+	Each call sends the metadata (with the file size) and the chunks of an image of the mix, as the Node client.
+	With unique=true the images are all different for the cache of the server (8 random bytes after the end of the image).
+	The report (LoadReport) gives throughput, latency percentiles, errors by reason and heap/GC over time.
+	With target=inprocess the server runs in the same JVM (ConversionServer.main with the config file).
+	*/
+	private final LoadOptions options;
+	private final ImageMix mix;
+	private final LoadReport report;
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private ConverterGrpc.ConverterStub stub;
+	private List<String> clientIds;
+	private volatile boolean running = true;
+
+	private LoadGenerator(LoadOptions options, ImageMix mix, LoadReport report) {
+		this.options = options;
+		this.mix = mix;
+		this.report = report;
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadOptions options = LoadOptions.parse(args);
+		System.out.println("Load: " + options);
+		ImageMix mix = new ImageMix(options.mix, new File(options.uploads), options.chunk);
+		System.out.println("Images: " + mix.describe());
+		String target = options.target;
+		if ("inprocess".equals(target)) {
+			target = startServer(options.config);
+		}
+		ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+		LoadGenerator generator = new LoadGenerator(options, mix, new LoadReport(options.csv));
+		generator.stub = ConverterGrpc.newStub(channel);
+		generator.clientIds = register(channel, options.clients, mix.getTypes());
+		generator.run();
+		channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+		System.exit(0);		// also stops the server in process
+	}
+
+	private static String startServer(String config) throws Exception {
+		// start the server of the configuration file in this JVM, return its address when it is ready
+		Properties properties = new Properties();
+		try (Reader reader = new FileReader(config)) {
+			properties.load(reader);
+		}
+		String target = "localhost:" + properties.getProperty("server.port", "50051").trim();
+		Thread server = new Thread(() -> {
+			try {
+				Class.forName("ConversionServer").getMethod("main", String[].class).invoke(null, (Object) new String[] {config});
+			} catch (ReflectiveOperationException e) {
+				e.printStackTrace();
+			}
+		}, "conversion-server");		// ConversionServer is in the default package, it is found only by reflection
+		server.setDaemon(true);
+		server.start();
+		ManagedChannel channel = ManagedChannelBuilder.forTarget(target).usePlaintext().build();
+		try {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+			while (true) {
+				try {
+					RegistratorGrpc.newBlockingStub(channel).withDeadlineAfter(1, TimeUnit.SECONDS)
+							.getNegotiatedParameters(ClientIdRequest.newBuilder().setClientId("").build());
+					return target;
+				} catch (StatusRuntimeException e) {
+					if (e.getStatus().getCode() != Status.Code.UNAVAILABLE && e.getStatus().getCode() != Status.Code.DEADLINE_EXCEEDED) {
+						return target;		// the server answers
+					}
+					if (System.nanoTime() > deadline || !server.isAlive()) {
+						throw new IllegalStateException("Server in process not started", e);
+					}
+					Thread.sleep(200);
+				}
+			}
+		} finally {
+			channel.shutdownNow();
+		}
+	}
+
+	private static List<String> register(ManagedChannel channel, int clients, List<String> types) {
+		// new clients at every run (the registry of the server is persistent), without size limits
+		String run = Long.toString(System.currentTimeMillis(), 36);
+		ClientRegistrationRequest.Builder request = ClientRegistrationRequest.newBuilder();
+		for (String type : types) {
+			Parameter_pair unlimited = Parameter_pair.newBuilder().setImgType(type).setImgMaxSize(0).build();
+			request.addDesiredInputParameters(unlimited).addDesiredOutputParameters(unlimited);
+		}
+		RegistratorGrpc.RegistratorBlockingStub registrator = RegistratorGrpc.newBlockingStub(channel);
+		List<String> clientIds = new ArrayList<>();
+		for (int i = 0; i < clients; i++) {
+			String clientId = "load-" + run + "-" + i;
+			ClientRegistrationResponse response = registrator.withDeadlineAfter(10, TimeUnit.SECONDS)
+					.registerClient(request.setClientId(clientId).build());
+			if (!response.getSuccess()) {
+				throw new IllegalStateException("Client " + clientId + " not registered: " + response.getMessage());
+			}
+			clientIds.add(clientId);
+		}
+		System.out.println("Clients registered: " + clients);
+		return clientIds;
+	}
+
+	private void run() throws InterruptedException {
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(options.warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(options.duration);
+		Thread load = "closed".equals(options.mode)
+				? new Thread(this::closedLoop, "load-closed")
+				: new Thread(() -> openLoop(end), "load-open");
+		load.setDaemon(true);
+		load.start();
+		System.out.println("Warmup " + options.warmup + " s");
+		sleepUntil(measureStart);
+		report.start();
+		long nextReport = measureStart;
+		while (System.nanoTime() < end) {
+			nextReport = Math.min(end, nextReport + TimeUnit.SECONDS.toNanos(options.interval));
+			sleepUntil(nextReport);
+			report.printInterval(outstanding.get());
+		}
+		running = false;
+		long drain = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (outstanding.get() > 0 && System.nanoTime() < drain) {
+			Thread.sleep(10);
+		}
+		report.printSummary();
+		if (outstanding.get() > 0) {
+			System.out.println("Calls still in flight after 30 s: " + outstanding.get());
+		}
+	}
+
+	private void closedLoop() {
+		// clients * concurrency chains of calls: each call starts the next one of its chain when it ends
+		int chains = options.clients * options.concurrency;
+		for (int i = 0; i < chains; i++) {
+			String clientId = clientIds.get(i % clientIds.size());
+			Random random = new Random(options.seed + i);
+			Runnable[] next = new Runnable[1];
+			next[0] = () -> {
+				if (running) {
+					convert(clientId, mix.next(random), System.nanoTime(), next[0]);
+				}
+			};
+			next[0].run();
+		}
+	}
+
+	private void openLoop(long end) {
+		// Poisson arrivals: exponential times between two calls, the clients are used in turn
+		Random random = new Random(options.seed);
+		long intended = System.nanoTime();
+		int client = 0;
+		while (running && intended < end) {
+			intended += (long) (-Math.log(1 - random.nextDouble()) / options.rate * 1e9);
+			sleepUntil(intended);
+			if (outstanding.get() >= options.maxOutstanding) {
+				report.error("GENERATOR: too many calls in flight (maxOutstanding)");
+				continue;
+			}
+			convert(clientIds.get(client), mix.next(random), intended, null);
+			client = (client + 1) % clientIds.size();
+		}
+	}
+
+	private void convert(String clientId, ImageMix.Conversion conversion, long startNanos, Runnable next) {
+		// one fileConvert call, the result is recorded when it ends and then next is run
+		outstanding.incrementAndGet();
+		byte[] suffix = new byte[options.unique ? 8 : 0];
+		ThreadLocalRandom.current().nextBytes(suffix);
+		long size = conversion.image.size + suffix.length;
+		StreamObserver<ConversionRequest> requests = stub.fileConvert(new StreamObserver<ConversionReply>() {
+			private String refused;		// error of the metadata reply
+			private long received;
+
+			@Override
+			public void onNext(ConversionReply reply) {
+				if (reply.hasMeta()) {
+					if (!reply.getMeta().getSuccess()) {
+						refused = reply.getMeta().getError();
+					}
+				} else {
+					received += reply.getFile().size();
+				}
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				Status status = Status.fromThrowable(t);
+				report.error(status.getCode() + ": " + (status.getDescription() != null ? status.getDescription() : refused));
+				done();
+			}
+
+			@Override
+			public void onCompleted() {
+				if (refused != null) {
+					report.error("OK: " + refused);
+				} else {
+					report.success(System.nanoTime() - startNanos, size, received);
+				}
+				done();
+			}
+
+			private void done() {
+				outstanding.decrementAndGet();
+				if (next != null) {
+					next.run();
+				}
+			}
+		});
+		requests.onNext(ConversionRequest.newBuilder().setMeta(MetadataRequest.newBuilder()
+				.setClientId(clientId)
+				.setFileTypeOrigin(conversion.image.type)
+				.setFileTypeTarget(conversion.target)
+				.setFileSize(size)).build());
+		for (ByteString chunk : conversion.image.chunks) {
+			requests.onNext(ConversionRequest.newBuilder().setFile(chunk).build());
+		}
+		if (suffix.length > 0) {
+			requests.onNext(ConversionRequest.newBuilder().setFile(ByteString.copyFrom(suffix)).build());
+		}
+		requests.onCompleted();
+	}
+
+	private static void sleepUntil(long nanos) {
+		long wait;
+		while ((wait = nanos - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package loadtest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class LoadOptions {
+	/*
+	Options of the load generator, given as --name=value arguments (every option has a default value).
+	target: host:port of the server, or "inprocess" to start the server in the same JVM (config: its configuration file)
+	mode: "closed" (each client has concurrency calls in flight and sends the next one when one ends)
+	      or "open" (calls started at rate calls per second in total, Poisson arrivals, whatever the responses)
+	clients: clients registered and used in turn
+	mix: origin:target=weight pairs of the conversions, the images are the files of uploads of the origin type
+	duration, warmup: seconds of the measure and of the warmup before it (not recorded)
+	chunk: bytes of each message of the file, as the Node client
+	unique: true to append 8 random bytes after the end of each image (ignored by the decoders), so every call
+	        misses the cache of the converted images and the conversions are measured, not the cache
+	interval: seconds between two lines of the report, also written to csv if it is given
+	maxOutstanding: open loop only, calls in flight after which the new arrivals are dropped (counted as errors)
+	*/
+	final String target;
+	final String config;
+	final String mode;
+	final int clients;
+	final int concurrency;
+	final double rate;
+	final String mix;
+	final String uploads;
+	final int duration;
+	final int warmup;
+	final int chunk;
+	final boolean unique;
+	final int interval;
+	final int maxOutstanding;
+	final long seed;
+	final String csv;
+
+	private LoadOptions(Map<String, String> options) {
+		target = options.getOrDefault("target", "localhost:50051");
+		config = options.getOrDefault("config", "conversion_server_configuration.txt");
+		mode = options.getOrDefault("mode", "closed");
+		clients = Integer.parseInt(options.getOrDefault("clients", "10"));
+		concurrency = Integer.parseInt(options.getOrDefault("concurrency", "1"));
+		rate = Double.parseDouble(options.getOrDefault("rate", "50"));
+		mix = options.getOrDefault("mix", "jpg:png=4,jpg:jpg=2,gif:png=2,png:jpg=1");
+		uploads = options.getOrDefault("uploads", "../NodeClient/uploads");
+		duration = Integer.parseInt(options.getOrDefault("duration", "60"));
+		warmup = Integer.parseInt(options.getOrDefault("warmup", "10"));
+		chunk = Integer.parseInt(options.getOrDefault("chunk", "1024"));
+		unique = Boolean.parseBoolean(options.getOrDefault("unique", "false"));
+		interval = Integer.parseInt(options.getOrDefault("interval", "5"));
+		maxOutstanding = Integer.parseInt(options.getOrDefault("maxOutstanding", "1000"));
+		seed = Long.parseLong(options.getOrDefault("seed", "1"));
+		csv = options.get("csv");
+		if (!"closed".equals(mode) && !"open".equals(mode)) {
+			throw new IllegalArgumentException("Invalid mode: " + mode);
+		}
+	}
+
+	static LoadOptions parse(String[] args) {
+		Map<String, String> options = new LinkedHashMap<>();
+		for (String arg : args) {
+			int equals = arg.indexOf('=');
+			if (!arg.startsWith("--") || equals < 0) {
+				throw new IllegalArgumentException("Invalid option: " + arg + " (--name=value)");
+			}
+			options.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		return new LoadOptions(options);
+	}
+
+	@Override
+	public String toString() {
+		return "target " + target + ", " + mode + " loop, clients " + clients
+				+ ("closed".equals(mode) ? ", concurrency " + concurrency : ", rate " + rate + "/s")
+				+ ", mix " + mix + ", duration " + duration + " s (warmup " + warmup + " s), chunk " + chunk + " B, seed " + seed;
+	}
+}
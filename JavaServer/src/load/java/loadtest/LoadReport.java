@@ -0,0 +1,143 @@
+package loadtest;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+final class LoadReport {
+	/*
+	Results of the load generator: latency of the successful calls (total and of the last interval),
+	errors by reason (status code and message of the server, the numbers replaced by #), bytes sent and received.
+	Every interval a line with throughput, latency, errors, heap used and garbage collections of the interval is printed
+	(and written to the csv file): with the server in process they are the ones of the server, so a long run shows
+	if the heap grows or the collections get longer (soak test).
+	The calls that end during the warmup are not recorded.
+	*/
+	private final LatencyRecorder total = new LatencyRecorder();
+	private final AtomicReference<LatencyRecorder> interval = new AtomicReference<>(new LatencyRecorder());
+	private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+	private final LongAdder intervalErrors = new LongAdder();
+	private final LongAdder bytesSent = new LongAdder();
+	private final LongAdder bytesReceived = new LongAdder();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final PrintWriter csv;
+	private volatile boolean recording;
+	private long startNanos;
+	private long lastNanos;
+	private long lastGcCount;
+	private long lastGcMillis;
+	private long maxHeapUsed;
+
+	LoadReport(String csvFile) throws IOException {
+		csv = csvFile == null ? null : new PrintWriter(new FileWriter(csvFile));
+		if (csv != null) {
+			csv.println("seconds,calls_per_second,errors_per_second,p50_ms,p99_ms,p999_ms,max_ms,outstanding,heap_used_mb,gc_count,gc_ms");
+		}
+	}
+
+	void start() {
+		// end of the warmup, the results are recorded from now on
+		startNanos = System.nanoTime();
+		lastNanos = startNanos;
+		lastGcCount = gcCount();
+		lastGcMillis = gcMillis();
+		interval.set(new LatencyRecorder());
+		recording = true;
+	}
+
+	void success(long nanos, long sent, long received) {
+		if (recording) {
+			total.record(nanos);
+			interval.get().record(nanos);
+			bytesSent.add(sent);
+			bytesReceived.add(received);
+		}
+	}
+
+	void error(String reason) {
+		if (recording) {
+			errors.computeIfAbsent(reason.replaceAll("[0-9]+", "#"), k -> new LongAdder()).increment();
+			intervalErrors.increment();
+		}
+	}
+
+	void printInterval(long outstanding) {
+		long now = System.nanoTime();
+		double seconds = (now - lastNanos) / 1e9;
+		LatencyRecorder latencies = interval.getAndSet(new LatencyRecorder());
+		long failed = intervalErrors.sumThenReset();
+		long heapUsed = memory.getHeapMemoryUsage().getUsed();
+		maxHeapUsed = Math.max(maxHeapUsed, heapUsed);
+		long gcCount = gcCount();
+		long gcMillis = gcMillis();
+		System.out.println(String.format(Locale.ROOT,
+				"%6.0f s  %8.1f calls/s  %6.1f errors/s  p50 %8.2f ms  p99 %8.2f ms  p999 %8.2f ms  max %8.2f ms  in flight %5d  heap %6d MB  gc %4d (%d ms)",
+				(now - startNanos) / 1e9, latencies.getCount() / seconds, failed / seconds,
+				latencies.percentileMillis(50), latencies.percentileMillis(99), latencies.percentileMillis(99.9), latencies.maxMillis(),
+				outstanding, heapUsed >> 20, gcCount - lastGcCount, gcMillis - lastGcMillis));
+		if (csv != null) {
+			csv.println(String.format(Locale.ROOT, "%.0f,%.1f,%.1f,%.3f,%.3f,%.3f,%.3f,%d,%d,%d,%d",
+					(now - startNanos) / 1e9, latencies.getCount() / seconds, failed / seconds,
+					latencies.percentileMillis(50), latencies.percentileMillis(99), latencies.percentileMillis(99.9), latencies.maxMillis(),
+					outstanding, heapUsed >> 20, gcCount - lastGcCount, gcMillis - lastGcMillis));
+			csv.flush();
+		}
+		lastNanos = now;
+		lastGcCount = gcCount;
+		lastGcMillis = gcMillis;
+	}
+
+	void printSummary() {
+		recording = false;
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		long failed = 0;
+		for (LongAdder count : errors.values()) {
+			failed += count.sum();
+		}
+		System.out.println();
+		System.out.println(String.format(Locale.ROOT, "Calls: %d successful, %d failed in %.1f s (%.1f calls/s, %.1f MB/s sent, %.1f MB/s received)",
+				total.getCount(), failed, seconds, total.getCount() / seconds,
+				bytesSent.sum() / seconds / (1 << 20), bytesReceived.sum() / seconds / (1 << 20)));
+		System.out.println(String.format(Locale.ROOT, "Latency: mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms",
+				total.getMeanMillis(), total.percentileMillis(50), total.percentileMillis(90),
+				total.percentileMillis(99), total.percentileMillis(99.9), total.maxMillis()));
+		if (!errors.isEmpty()) {
+			System.out.println("Errors:");
+			for (Map.Entry<String, LongAdder> entry : new TreeMap<>(errors).entrySet()) {
+				System.out.println(String.format(Locale.ROOT, "%10d  %s", entry.getValue().sum(), entry.getKey()));
+			}
+		}
+		System.out.println("Heap: max used " + (maxHeapUsed >> 20) + " MB of " + (memory.getHeapMemoryUsage().getMax() >> 20) + " MB");
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			System.out.println("GC " + gc.getName() + ": " + gc.getCollectionCount() + " collections, " + gc.getCollectionTime() + " ms (since the start of the JVM)");
+		}
+		if (csv != null) {
+			csv.close();
+		}
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+}
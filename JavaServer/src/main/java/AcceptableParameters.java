@@ -0,0 +1,140 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class AcceptableParameters {
+	/*
+	Immutable set of the acceptable parameters of the server, read from the configuration file
+	(max size in KB for each image type, 0 = no size limit) and the admission limits of the clients (see ClientLimits).
+	A new configuration file creates a new set that replaces the old one with a single write,
+	so a registration always negotiates against a consistent set of parameters.
+	The blank rows are skipped and the values can be separated by any number of spaces or tabs,
+	only the malformed rows are counted as invalid.
+	*/
+	private final Map<String, Integer> inputParameters;
+	private final Map<String, Integer> outputParameters;
+	private final Map<String, ClientLimits> clientLimits;	// limits of each clientId, "*" for the other clients
+	private final int invalidRows;			// rows of the configuration file skipped because they are not valid
+
+	public AcceptableParameters(Map<String, Integer> inputParameters, Map<String, Integer> outputParameters) {
+		this(inputParameters, outputParameters, Collections.emptyMap(), 0);
+	}
+
+	private AcceptableParameters(Map<String, Integer> inputParameters, Map<String, Integer> outputParameters,
+			Map<String, ClientLimits> clientLimits, int invalidRows) {
+		this.inputParameters = Collections.unmodifiableMap(new LinkedHashMap<>(inputParameters));
+		this.outputParameters = Collections.unmodifiableMap(new LinkedHashMap<>(outputParameters));
+		this.clientLimits = Collections.unmodifiableMap(new LinkedHashMap<>(clientLimits));
+		this.invalidRows = invalidRows;
+	}
+
+	public static AcceptableParameters read(File fileName, ConversionEngine conversionEngine) throws IOException {
+		// read the configuration file parameters, the image types not supported by the conversion engine are skipped
+		Map<String, Integer> inputParameters = new LinkedHashMap<>();
+		Map<String, Integer> outputParameters = new LinkedHashMap<>();
+		Map<String, ClientLimits> clientLimits = new LinkedHashMap<>();
+		int invalidRows = 0;
+		try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
+			String row;
+			while ((row = br.readLine()) != null) {
+				if (row.trim().isEmpty()) {
+					continue;
+				}
+				String[] rows = row.trim().split("\\s+");
+				if (rows.length == 6 && "client".equalsIgnoreCase(rows[0])) {
+					// client <clientId> <concurrent> <rate> <burst> <weight>
+					try {
+						ClientLimits limits = new ClientLimits(Integer.parseInt(rows[2]), Double.parseDouble(rows[3]),
+								Integer.parseInt(rows[4]), Integer.parseInt(rows[5]));
+						if (limits.getMaxConcurrent() < 0 || limits.getRate() < 0) {
+							throw new NumberFormatException();
+						}
+						clientLimits.put(rows[1], limits);
+					} catch (NumberFormatException e) {
+						System.out.println("Invalid client limits: " + row);
+						invalidRows++;
+					}
+				} else if (rows.length == 3) {
+					String ioType = rows[0].toLowerCase();
+					String imgType = rows[1];
+					int maxSize;
+					try {
+						maxSize = Integer.parseInt(rows[2]);
+					} catch (NumberFormatException e) {
+						maxSize = -1;
+					}
+					if (maxSize < 0) {
+						System.out.println("Invalid size: " + row);
+						invalidRows++;
+					} else if ("input".equals(ioType)) {
+						if (conversionEngine.canRead(imgType)) {
+							inputParameters.put(imgType.toUpperCase(), maxSize);
+						} else {
+							System.out.println("Input image type not supported by the conversion engine: " + imgType);
+						}
+					} else if ("output".equals(ioType)) {
+						if (conversionEngine.canWrite(imgType)) {
+							outputParameters.put(imgType.toUpperCase(), maxSize);
+						} else {
+							System.out.println("Output image type not supported by the conversion engine: " + imgType);
+						}
+					} else {
+						System.out.println("Invalid ioType: " + ioType);
+						invalidRows++;
+					}
+				} else {
+					System.out.println("Invalid row format: " + row);
+					invalidRows++;
+				}
+			}
+		}
+		return new AcceptableParameters(inputParameters, outputParameters, clientLimits, invalidRows);
+	}
+
+	public Map<String, Integer> getInputParameters() {
+		return inputParameters;
+	}	// return acceptable input type and size parameters
+
+	public Map<String, Integer> getOutputParameters() {
+		return outputParameters;
+	}	// return acceptable output type and size parameters
+
+	public ClientLimits getClientLimits(String clientId) {
+		ClientLimits limits = clientLimits.get(clientId);
+		if (limits == null) {
+			limits = clientLimits.getOrDefault("*", ClientLimits.UNLIMITED);
+		}
+		return limits;
+	}	// return the admission limits of the client, the default ones if it has no row
+
+	public Map<String, ClientLimits> getClientLimits() {
+		return clientLimits;
+	}
+
+	public int getInvalidRows() {
+		return invalidRows;
+	}
+
+	public boolean isEmpty() {
+		return inputParameters.isEmpty() && outputParameters.isEmpty();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof AcceptableParameters)) {
+			return false;
+		}
+		AcceptableParameters parameters = (AcceptableParameters) other;
+		return inputParameters.equals(parameters.inputParameters) && outputParameters.equals(parameters.outputParameters)
+				&& clientLimits.equals(parameters.clientLimits);
+	}	// same acceptable parameters, the invalid rows are not compared
+
+	@Override
+	public int hashCode() {
+		return (31 * inputParameters.hashCode() + outputParameters.hashCode()) * 31 + clientLimits.hashCode();
+	}
+}
@@ -0,0 +1,147 @@
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public final class AdmissionController {
+	/*
+	Decides if a conversion of a client can start, from its clientId only (before the image is received).
+	Each client has a number of conversions in progress and a token bucket, checked against its ClientLimits
+	read from the current acceptable parameters (so a reload of the configuration file applies immediately).
+	A refused conversion gets the time after which it should be tried again:
+	- too many conversions in progress: retryMillis
+	- no tokens left: the time needed to refill one token
+	The state of a client without conversions in progress and with a full bucket is the same as a new one:
+	every sweepNanos the idle states are removed, so the map does not grow with all the clients ever registered.
+	*/
+	// standard gRPC trailer with the time to wait before retrying, read by the gRPC retry policy of the clients
+	private static final Metadata.Key<String> RETRY_PUSHBACK = Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+	private final ConcurrentHashMap<String, ClientState> clients = new ConcurrentHashMap<>();
+	private final long retryMillis;
+	private final long sweepNanos;			// interval between the removals of the idle clients
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+	private static final class ClientState {
+		int active;				// conversions in progress
+		double tokens = -1;		// tokens in the bucket, -1 until the first conversion
+		long refilled;			// time of the last refill
+		boolean removed;		// removed from the map by the sweep, a new state is taken
+	}
+
+	public AdmissionController(long retryMillis, long sweepMillis) {
+		this.retryMillis = retryMillis;
+		this.sweepNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, sweepMillis));
+	}
+
+	public static AdmissionController fromConfiguration() {
+		return new AdmissionController(ServerConfiguration.getInt("admission.retry.ms", 1000),
+				ServerConfiguration.getInt("admission.sweep.s", 60) * 1000L);
+	}
+
+	public long admit(String clientId) {
+		// start a conversion of the client, return 0 if it has been admitted or the milliseconds to wait before trying again
+		ClientLimits limits = SharedParameters.getAcceptableParameters().getClientLimits(clientId);
+		sweepIfDue();
+		while (true) {
+			ClientState state = clients.computeIfAbsent(clientId, k -> new ClientState());
+			synchronized (state) {
+				if (state.removed) {
+					continue;
+				}
+				if (limits.getMaxConcurrent() > 0 && state.active >= limits.getMaxConcurrent()) {
+					return retryMillis;
+				}
+				long wait = takeToken(state, limits);
+				if (wait > 0) {
+					return wait;
+				}
+				state.active++;
+				return 0;
+			}
+		}
+	}
+
+	public long admitNext(String clientId) {
+		// another conversion of a client already admitted (next image of a batch), only the rate is checked
+		// the client has a conversion in progress, so its state is never removed
+		ClientLimits limits = SharedParameters.getAcceptableParameters().getClientLimits(clientId);
+		ClientState state = clients.computeIfAbsent(clientId, k -> new ClientState());
+		synchronized (state) {
+			return takeToken(state, limits);
+		}
+	}
+
+	public void release(String clientId) {
+		ClientState state = clients.get(clientId);
+		if (state != null) {
+			synchronized (state) {
+				state.active--;
+			}
+		}
+	}	// the conversion admitted by admit has ended
+
+	public void sweep() {
+		// remove the states of the clients without conversions in progress and with a full bucket
+		AcceptableParameters acceptable = SharedParameters.getAcceptableParameters();
+		long now = System.nanoTime();
+		for (Map.Entry<String, ClientState> entry : clients.entrySet()) {
+			ClientState state = entry.getValue();
+			synchronized (state) {
+				if (state.active == 0 && isFull(state, acceptable.getClientLimits(entry.getKey()), now)) {
+					state.removed = true;
+					clients.remove(entry.getKey(), state);
+				}
+			}
+		}
+	}
+
+	public int getWeight(String clientId) {
+		return SharedParameters.getAcceptableParameters().getClientLimits(clientId).getWeight();
+	}	// return the weight of the client in the conversion queue
+
+	public static StatusRuntimeException rejection(long waitMillis) {
+		// RESOURCE_EXHAUSTED error of a conversion not admitted, with the time to wait in the message and in the trailers
+		Metadata trailers = new Metadata();
+		trailers.put(RETRY_PUSHBACK, Long.toString(waitMillis));
+		return Status.RESOURCE_EXHAUSTED
+				.withDescription("Too many conversions of this client! Try again in " + waitMillis + " ms.")
+				.asRuntimeException(trailers);
+	}
+
+	private void sweepIfDue() {
+		long last = lastSweep.get();
+		long now = System.nanoTime();
+		if (now - last >= sweepNanos && lastSweep.compareAndSet(last, now)) {
+			sweep();
+		}
+	}	// only one of the threads admitting a conversion sweeps, the others go on
+
+	private static boolean isFull(ClientState state, ClientLimits limits, long now) {
+		// called holding the client lock
+		return limits.getRate() <= 0 || state.tokens < 0
+				|| state.tokens + (now - state.refilled) / 1e9 * limits.getRate() >= limits.getBurst();
+	}
+
+	private static long takeToken(ClientState state, ClientLimits limits) {
+		// called holding the client lock, return 0 if a token has been taken or the milliseconds to refill one
+		if (limits.getRate() <= 0) {
+			return 0;
+		}
+		long now = System.nanoTime();
+		if (state.tokens < 0) {
+			state.tokens = limits.getBurst();
+		} else {
+			state.tokens = Math.min(limits.getBurst(), state.tokens + (now - state.refilled) / 1e9 * limits.getRate());
+		}
+		state.refilled = now;
+		if (state.tokens >= 1) {
+			state.tokens--;
+			return 0;
+		}
+		return Math.max(1, (long) Math.ceil((1 - state.tokens) / limits.getRate() * 1000));
+	}
+}
@@ -0,0 +1,217 @@
+import java.awt.Color;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
+
+public final class AlphaFlattener {
+	/*
+	Replaces the transparent pixels of an image with a background color, for the output types without alpha.
+	The pixels are composited directly on the raster data of the most common decoded images
+	(int ARGB, 8 bit RGBA/ABGR, 8 bit palette), the other images are read one row at a time with getRGB.
+	Images bigger than parallelPixels are split in bands of rows flattened in parallel.
+	The pixel arrays of the flattened images are reused: the image must be released after it has been encoded.
+	*/
+	private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+	private final int parallelPixels;		// minimum number of pixels to flatten the image in parallel
+	private final int bandRows;				// rows of each band flattened in parallel
+	private final int poolSize;				// maximum number of pixel arrays kept for reuse
+	private final int maxPooledPixels;		// arrays bigger than this are not kept for reuse
+	private final Queue<int[]> pool = new ConcurrentLinkedQueue<>();
+
+	public AlphaFlattener(int parallelPixels, int bandRows, int poolSize, int maxPooledPixels) {
+		this.parallelPixels = parallelPixels;
+		this.bandRows = Math.max(1, bandRows);
+		this.poolSize = poolSize;
+		this.maxPooledPixels = maxPooledPixels;
+	}
+
+	public static AlphaFlattener fromConfiguration() {
+		return new AlphaFlattener(
+				ServerConfiguration.getInt("flatten.parallel.pixels", 1024 * 1024),
+				ServerConfiguration.getInt("flatten.band.rows", 64),
+				ServerConfiguration.getInt("flatten.pool.size", Runtime.getRuntime().availableProcessors()),
+				ServerConfiguration.getInt("flatten.pool.pixels", 4 * 1024 * 1024));
+	}
+
+	public static boolean supportsAlpha(String imgType) {
+		return "PNG".equalsIgnoreCase(imgType);
+	}	// return true if the transparent pixels can be written as they are
+
+	public static boolean isTransparent(BufferedImage image) {
+		return image.getColorModel().getTransparency() != Transparency.OPAQUE;
+	}
+
+	public BufferedImage flatten(BufferedImage image, Color fillColor) {
+		// return an opaque RGB copy of the image, with the transparent pixels composited over fillColor
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final int[] target = borrow(w * h);
+		final int background = fillColor.getRGB();
+		final RowFlattener rows = rowFlattener(image, target, background);
+		if ((long) w * h >= parallelPixels && h > bandRows) {
+			int bands = (h + bandRows - 1) / bandRows;
+			IntStream.range(0, bands).parallel().forEach(band ->
+					rows.flatten(band * bandRows, Math.min(h, (band + 1) * bandRows)));
+		} else {
+			rows.flatten(0, h);
+		}
+		WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(target, w * h), w, h, w, RGB.getMasks(), null);
+		return new BufferedImage(RGB, raster, false, null);
+	}
+
+	public void release(BufferedImage flattened) {
+		// give back the pixel array of a flattened image, the image must not be used anymore
+		DataBuffer buffer = flattened.getRaster().getDataBuffer();
+		if (buffer instanceof DataBufferInt && pool.size() < poolSize) {
+			int[] pixels = ((DataBufferInt) buffer).getData();
+			if (pixels.length <= maxPooledPixels) {
+				pool.offer(pixels);
+			}
+		}
+	}
+
+	private int[] borrow(int pixels) {
+		int[] array = pool.poll();
+		return array != null && array.length >= pixels ? array : new int[pixels];
+	}	// a pooled array too small is dropped, a bigger one will be pooled when released
+
+	private interface RowFlattener {
+		void flatten(int fromRow, int toRow);
+	}
+
+	private static RowFlattener rowFlattener(BufferedImage image, int[] target, int background) {
+		// choose the loop for the layout of the image pixels
+		final int w = image.getWidth();
+		final WritableRaster raster = image.getRaster();
+		final ColorModel colorModel = image.getColorModel();
+		final DataBuffer buffer = raster.getDataBuffer();
+		final boolean topLevel = raster.getParent() == null && raster.getSampleModelTranslateX() == 0
+				&& raster.getSampleModelTranslateY() == 0 && buffer.getNumBanks() == 1;
+
+		if (topLevel && image.getType() == BufferedImage.TYPE_INT_ARGB) {
+			final int[] data = ((DataBufferInt) buffer).getData();
+			final int offset = buffer.getOffset();
+			final int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+			return (fromRow, toRow) -> {
+				for (int y = fromRow; y < toRow; y++) {
+					int source = offset + y * stride;
+					int destination = y * w;
+					for (int x = 0; x < w; x++) {
+						target[destination + x] = composite(data[source + x], background);
+					}
+				}
+			};
+		}
+		if (topLevel && buffer instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel) {
+			final byte[] data = ((DataBufferByte) buffer).getData();
+			final int offset = buffer.getOffset();
+			final ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+			final int stride = sampleModel.getScanlineStride();
+			final int pixelStride = sampleModel.getPixelStride();
+			final int[] bands = sampleModel.getBandOffsets();
+			final int red = bands[0];
+
+			if (colorModel instanceof IndexColorModel && bands.length == 1) {
+				// palette image: the palette is flattened once, then each pixel is a lookup
+				final int[] lookup = paletteLookup((IndexColorModel) colorModel, background);
+				return (fromRow, toRow) -> {
+					for (int y = fromRow; y < toRow; y++) {
+						int source = offset + y * stride + red;
+						int destination = y * w;
+						for (int x = 0; x < w; x++, source += pixelStride) {
+							target[destination + x] = lookup[data[source] & 0xFF];
+						}
+					}
+				};
+			}
+			if (colorModel instanceof ComponentColorModel && bands.length == 4 && !colorModel.isAlphaPremultiplied()
+					&& colorModel.getColorSpace().isCS_sRGB()) {
+				// 8 bit RGBA (PNG) or ABGR (TYPE_4BYTE_ABGR)
+				final int green = bands[1];
+				final int blue = bands[2];
+				final int alpha = bands[3];
+				return (fromRow, toRow) -> {
+					for (int y = fromRow; y < toRow; y++) {
+						int source = offset + y * stride;
+						int destination = y * w;
+						for (int x = 0; x < w; x++, source += pixelStride) {
+							int argb = (data[source + alpha] & 0xFF) << 24 | (data[source + red] & 0xFF) << 16
+									| (data[source + green] & 0xFF) << 8 | (data[source + blue] & 0xFF);
+							target[destination + x] = composite(argb, background);
+						}
+					}
+				};
+			}
+		}
+		if (colorModel instanceof IndexColorModel && raster.getNumBands() == 1) {
+			// palette image with packed pixels (1, 2 or 4 bits), read one row of indexes at a time
+			final int[] lookup = paletteLookup((IndexColorModel) colorModel, background);
+			return (fromRow, toRow) -> {
+				int[] row = new int[w];
+				for (int y = fromRow; y < toRow; y++) {
+					raster.getSamples(0, y, w, 1, 0, row);
+					int destination = y * w;
+					for (int x = 0; x < w; x++) {
+						target[destination + x] = lookup[row[x]];
+					}
+				}
+			};
+		}
+		// any other image, converted to ARGB one row at a time
+		return (fromRow, toRow) -> {
+			int[] row = new int[w];
+			for (int y = fromRow; y < toRow; y++) {
+				image.getRGB(0, y, w, 1, row, 0, w);
+				int destination = y * w;
+				for (int x = 0; x < w; x++) {
+					target[destination + x] = composite(row[x], background);
+				}
+			}
+		};
+	}
+
+	private static int[] paletteLookup(IndexColorModel palette, int background) {
+		// flattened color of each index of the palette
+		int[] lookup = new int[1 << palette.getPixelSize()];
+		for (int i = 0; i < palette.getMapSize(); i++) {
+			lookup[i] = composite(palette.getRGB(i), background);
+		}
+		return lookup;
+	}
+
+	private static int composite(int argb, int background) {
+		// source over an opaque background: c = (c * a + bg * (255 - a)) / 255 for each channel, rounded
+		int a = argb >>> 24;
+		if (a == 0xFF) {
+			return argb & 0xFFFFFF;
+		}
+		if (a == 0) {
+			return background & 0xFFFFFF;
+		}
+		int na = 255 - a;
+		int r = divide255(((argb >> 16) & 0xFF) * a + ((background >> 16) & 0xFF) * na);
+		int g = divide255(((argb >> 8) & 0xFF) * a + ((background >> 8) & 0xFF) * na);
+		int b = divide255((argb & 0xFF) * a + (background & 0xFF) * na);
+		return r << 16 | g << 8 | b;
+	}
+
+	private static int divide255(int value) {
+		// value / 255 rounded to the nearest integer, without a division
+		value += 128;
+		return (value + (value >> 8)) >> 8;
+	}
+}
@@ -0,0 +1,262 @@
+import java.awt.Color;
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Vector;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+public final class BandedImage implements RenderedImage {
+	/*
+	Image decoded one band of rows at a time while it is encoded, for the images too big to be decoded at once.
+	Only the band with the rows asked by the writer is in memory: when the writer asks a row of another band,
+	that band is decoded with a source region of the reader (and flattened if the target type has no alpha).
+	The writers that take the image one row at a time (PNG with getData, JPEG through the pixels of its single tile)
+	go through the bands in order, so the memory used stays about one band whatever the size of the image.
+	Each band is read again from the start of the image: the reader decodes the rows before the region to skip them.
+	The image can be subsampled (one pixel every subsampling rows and columns) to downscale it while decoding.
+	The pixels of the band that raises an IOException are read as an UncheckedIOException, see ConversionEngine.writeBanded.
+	*/
+	private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+	private final ImageReader reader;
+	private final ImageReadParam param;
+	private final int sourceWidth;
+	private final int sourceHeight;
+	private final int subsampling;
+	private final int width;
+	private final int height;
+	private final int bandRows;				// rows of the image decoded at a time
+	private final AlphaFlattener flattener;	// fills the transparent pixels, null if they are kept
+	private final DirectColorModel colorModel;
+	private final SampleModel sampleModel;
+	private final WritableRaster tile;		// the whole image, its pixels are read from the band of their row
+	private int[] band;						// pixels of the rows bandStart ---> bandEnd, ARGB or RGB
+	private BufferedImage flattened;		// flattened band that owns the band array, released at the next band
+	private int bandStart;
+	private int bandEnd;
+
+	public BandedImage(ImageReader reader, int bandPixels, int subsampling, AlphaFlattener flattener) throws IOException {
+		// the input of the reader must be set, with seekForwardOnly false because the bands are read again from the start
+		this.reader = reader;
+		this.sourceWidth = reader.getWidth(0);
+		this.sourceHeight = reader.getHeight(0);
+		this.subsampling = Math.max(1, subsampling);
+		this.width = (sourceWidth + this.subsampling - 1) / this.subsampling;
+		this.height = (sourceHeight + this.subsampling - 1) / this.subsampling;
+		if ((long) width * height > Integer.MAX_VALUE) {
+			throw new IOException("Image too big!");
+		}
+		this.bandRows = Math.max(1, Math.min(height, bandPixels / width));
+		this.param = reader.getDefaultReadParam();
+		param.setSourceSubsampling(this.subsampling, this.subsampling, 0, 0);
+
+		ImageTypeSpecifier type = reader.getRawImageType(0);
+		if (type == null) {
+			type = reader.getImageTypes(0).next();
+		}
+		boolean transparent = type.getColorModel().getTransparency() != Transparency.OPAQUE;
+		this.flattener = transparent ? flattener : null;
+		this.colorModel = transparent && flattener == null ? (DirectColorModel) ColorModel.getRGBdefault() : RGB;
+		this.sampleModel = new SinglePixelPackedSampleModel(DataBuffer.TYPE_INT, width, height, colorModel.getMasks());
+		this.tile = Raster.createWritableRaster(sampleModel, new BandPixels(), null);
+		this.bandStart = 0;
+		this.bandEnd = 0;
+	}
+
+	public void close() {
+		// release the last flattened band, the image must not be used anymore
+		if (flattened != null) {
+			flattener.release(flattened);
+			flattened = null;
+		}
+		band = null;
+	}
+
+	private void loadBand(int row) {
+		// decode the band with the row, replacing the current one
+		int start = row / bandRows * bandRows;
+		int end = Math.min(height, start + bandRows);
+		int sourceStart = start * subsampling;
+		param.setSourceRegion(new Rectangle(0, sourceStart, sourceWidth,
+				Math.min(sourceHeight - sourceStart, (end - start) * subsampling)));
+		BufferedImage decoded;
+		try {
+			decoded = reader.read(0, param);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (flattened != null) {
+			flattener.release(flattened);
+			flattened = null;
+		}
+		if (flattener != null) {
+			// the flattened pixels are used as they are, the array is released when the band is replaced
+			flattened = flattener.flatten(decoded, Color.WHITE);
+			band = ((DataBufferInt) flattened.getRaster().getDataBuffer()).getData();
+		} else {
+			if (band == null || band.length < bandRows * width) {
+				band = new int[bandRows * width];
+			}
+			decoded.getRGB(0, 0, width, end - start, band, 0, width);
+		}
+		bandStart = start;
+		bandEnd = end;
+	}
+
+	private final class BandPixels extends DataBuffer {
+		// pixels of the whole image read from the current band, one int for each pixel
+
+		BandPixels() {
+			super(DataBuffer.TYPE_INT, width * height);
+		}
+
+		@Override
+		public int getElem(int bank, int i) {
+			int row = i / width;
+			if (row < bandStart || row >= bandEnd) {
+				loadBand(row);
+			}
+			return band[i - bandStart * width];
+		}
+
+		@Override
+		public void setElem(int bank, int i, int val) {
+			throw new UnsupportedOperationException("Read only image");
+		}
+	}
+
+	@Override
+	public Raster getData(Rectangle rect) {
+		// copy of the pixels of rect, the rows are copied from their band
+		Rectangle bounds = rect.intersection(new Rectangle(width, height));
+		int[] pixels = new int[Math.max(1, bounds.width * bounds.height)];
+		for (int y = 0; y < bounds.height; y++) {
+			int row = bounds.y + y;
+			if (row < bandStart || row >= bandEnd) {
+				loadBand(row);
+			}
+			System.arraycopy(band, (row - bandStart) * width + bounds.x, pixels, y * bounds.width, bounds.width);
+		}
+		return Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length), bounds.width, bounds.height,
+				bounds.width, colorModel.getMasks(), new Point(bounds.x, bounds.y));
+	}
+
+	@Override
+	public Raster getData() {
+		return getData(new Rectangle(width, height));
+	}	// the whole image in memory, used only by the writers that do not read it one row at a time
+
+	@Override
+	public WritableRaster copyData(WritableRaster raster) {
+		if (raster == null) {
+			raster = Raster.createPackedRaster(DataBuffer.TYPE_INT, width, height, colorModel.getMasks(), null);
+		}
+		raster.setRect(getData(raster.getBounds()));
+		return raster;
+	}
+
+	@Override
+	public Raster getTile(int tileX, int tileY) {
+		return tile;
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames() {
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	@Override
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getMinX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinY() {
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getNumYTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getMinTileX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY() {
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth() {
+		return width;
+	}
+
+	@Override
+	public int getTileHeight() {
+		return height;
+	}
+
+	@Override
+	public int getTileGridXOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset() {
+		return 0;
+	}
+}
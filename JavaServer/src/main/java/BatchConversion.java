@@ -0,0 +1,303 @@
+import conversion.BatchChunk;
+import conversion.BatchMetadataRequest;
+import conversion.BatchRequest;
+import com.google.protobuf.ByteString;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.StreamObserver;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class BatchConversion implements StreamObserver<BatchRequest> {
+	/*
+	One batchConvert call: the clientId is checked once, then several images are received over the same stream.
+	Each image is converted by the conversion workers as soon as its last chunk is received, so the decode,
+	flatten and encode of different images run at the same time on different workers, while the other images
+	are still being received or sent back. The results are sent back in the order they are ready.
+	Each image succeeds or fails on its own, with the same checks and messages of fileConvert.
+	At most maxImages images can be in progress (received and not sent back yet), the others fail.
+	The call is admitted once with the limits of the client (see AdmissionController), it counts as one conversion
+	in progress until it ends, and each image after the first one takes a token of the client's rate.
+	*/
+	private static final Logger logger = Logger.getLogger(BatchConversion.class.getName());
+
+	private final Converter converter;
+	private final ConversionExecutor conversionExecutor;
+	private final AdmissionController admissionController;
+	private final BatchReplySender replySender;
+	private final int maxImages;
+	private boolean clientReceived;
+	private ClientParameters client;							// null if the client is not registered
+	private int weight = 1;										// weight of the client in the conversion queue
+	private boolean firstImage = true;							// the first image is admitted with the call
+	private final AtomicBoolean admitted = new AtomicBoolean(false);
+	private final Map<Integer, Image> receiving = new HashMap<>();	// images not completely received yet
+	private final Set<Integer> refused = new HashSet<>();			// images sent without metadata, answered once
+	private final AtomicInteger converting = new AtomicInteger();	// images received and not sent back yet
+	private volatile boolean inputCompleted;
+
+	private static final class Image {
+		final int imageId;
+		ImageType typeOrigin;			// the real type once the header is read
+		final ImageType typeTarget;
+		long maxInputBytes;				// 0 = no size limit
+		final long maxOutputBytes;
+		final long receiveStart = System.nanoTime();
+		ByteString data = ByteString.EMPTY;
+		boolean failed;					// the result has already been sent, the next chunks are dropped
+		boolean headerChecked;			// real type and dimensions of the image checked
+
+		Image(int imageId, ImageType typeOrigin, ImageType typeTarget, long maxInputBytes, long maxOutputBytes) {
+			this.imageId = imageId;
+			this.typeOrigin = typeOrigin;
+			this.typeTarget = typeTarget;
+			this.maxInputBytes = maxInputBytes;
+			this.maxOutputBytes = maxOutputBytes;
+		}
+	}
+
+	public BatchConversion(Converter converter, ConversionExecutor conversionExecutor, AdmissionController admissionController,
+			BatchReplySender replySender, int maxImages) {
+		this.converter = converter;
+		this.conversionExecutor = conversionExecutor;
+		this.admissionController = admissionController;
+		this.replySender = replySender;
+		this.maxImages = maxImages;
+	}
+
+	@Override
+	public void onNext(BatchRequest request) {
+		// called by one thread at a time, the images being received are not shared with the workers
+		if (inputCompleted) {
+			return;		// the call has been refused
+		}
+		switch (request.getRequestOneofCase()) {
+			case CLIENT_ID:
+				if (clientReceived) {
+					// the call is admitted once: a second clientId would count twice in the limits of the client
+					logger.log(Level.FINE, "ClientId already received!");
+					ServerMetrics.rejection("client_id_repeated");
+					receiving.clear();
+					inputCompleted = true;
+					replySender.reject(Status.INVALID_ARGUMENT.withDescription("ClientId already received!").asRuntimeException());
+					if (converting.get() == 0) {
+						releaseAdmission();
+					}
+					return;
+				}
+				client = SharedParameters.getClient(request.getClientId());
+				clientReceived = true;
+				if (client != null) {
+					long wait = admissionController.admit(client.getClientId());
+					if (wait > 0) {
+						logger.log(Level.FINE, "Batch not admitted, try again in " + wait + " ms");
+						ServerMetrics.rejection("client_limit");
+						inputCompleted = true;
+						replySender.reject(AdmissionController.rejection(wait));
+						return;
+					}
+					admitted.set(true);
+					weight = admissionController.getWeight(client.getClientId());
+				}
+				break;
+			case META:
+				startImage(request.getMeta());
+				break;
+			case FILE:
+				receiveChunk(request.getFile());
+				break;
+			default:
+				break;
+		}
+	}
+
+	private void startImage(BatchMetadataRequest meta) {
+		ImageType typeOrigin = ImageType.parse(meta.getFileTypeOrigin());
+		ImageType typeTarget = ImageType.parse(meta.getFileTypeTarget());
+		if (receiving.containsKey(meta.getImageId())) {
+			replySender.sendError(meta.getImageId(), "Image id already in use!");
+			return;
+		}
+		refused.remove(meta.getImageId());
+		Image image = new Image(meta.getImageId(), typeOrigin, typeTarget,
+				client == null ? 0 : client.getMaxInputBytes(typeOrigin),
+				client == null ? 0 : client.getMaxOutputBytes(typeTarget));
+		receiving.put(image.imageId, image);
+		if (!clientReceived || client == null) {
+			fail(image, "client_not_registered", "Client not registered! You are not allowed to the Conversion Service.");
+		} else if (!client.acceptsInput(typeOrigin)) {
+			fail(image, "input_type", "Input image type not supported!");
+		} else if (!client.acceptsOutput(typeTarget)) {
+			fail(image, "output_type", "Output image type not supported!");
+		} else if (image.maxInputBytes > 0 && meta.getFileSize() > image.maxInputBytes) {
+			fail(image, "input_size", "Input image size not acceptable!");
+		} else if (receiving.size() + converting.get() > maxImages) {
+			fail(image, "busy", "Too many images in progress! Try again later.");
+		} else if (!firstImage) {
+			long wait = admissionController.admitNext(client.getClientId());
+			if (wait > 0) {
+				fail(image, "client_limit", "Too many conversions of this client! Try again in " + wait + " ms.");
+			}
+		}
+		firstImage = false;
+	}
+
+	private void receiveChunk(BatchChunk chunk) {
+		Image image = receiving.get(chunk.getImageId());
+		if (image == null) {
+			// the error is sent for the first chunk only, the next ones of the image are dropped
+			if (refused.add(chunk.getImageId())) {
+				logger.log(Level.FINE, "Image metadata not received!");
+				ServerMetrics.rejection("no_metadata");
+				replySender.sendError(chunk.getImageId(), "Image metadata not received!");
+			}
+			if (chunk.getLast()) {
+				refused.remove(chunk.getImageId());
+			}
+			return;
+		}
+		if (!image.failed) {
+			image.data = image.data.concat(chunk.getData());
+			// the size is checked while receiving, the next chunks of the image are dropped
+			if (image.maxInputBytes > 0 && image.data.size() > image.maxInputBytes) {
+				fail(image, "input_size", "Input image size not acceptable!");
+			} else if (!image.headerChecked) {
+				ImageHeader header = ImageHeader.read(image.data);
+				if (!header.needsMoreBytes()) {
+					checkHeader(image, header);
+				}
+			}
+		}
+		if (chunk.getLast()) {
+			receiving.remove(image.imageId);
+			if (!image.failed && !image.headerChecked) {
+				checkHeader(image, ImageHeader.read(image.data));		// image smaller than its header
+			}
+			if (!image.failed) {
+				ServerMetrics.recordPhase(ServerMetrics.Phase.RECEIVE, System.nanoTime() - image.receiveStart);
+				ServerMetrics.addBytesIn(image.data.size());
+				submit(image);
+			}
+		}
+	}
+
+	private void checkHeader(Image image, ImageHeader header) {
+		// the real type and the dimensions are checked before the rest of the image is received, as in fileConvert
+		image.headerChecked = true;
+		ImageType typeReal = converter.checkOrigin(header, image.typeOrigin, client);
+		if (typeReal == null) {
+			fail(image, "input_type", "Input image is not of the declared type!");
+			return;
+		}
+		if (typeReal != image.typeOrigin) {
+			image.typeOrigin = typeReal;
+			image.maxInputBytes = client.getMaxInputBytes(typeReal);
+			if (image.maxInputBytes > 0 && image.data.size() > image.maxInputBytes) {
+				fail(image, "input_size", "Input image size not acceptable!");
+				return;
+			}
+		}
+		if (!converter.acceptsPixels(header)) {
+			fail(image, "input_pixels", "Input image dimensions not acceptable!");
+		}
+	}
+
+	private void fail(Image image, String reason, String error) {
+		logger.log(Level.FINE, error);
+		ServerMetrics.rejection(reason);
+		image.failed = true;
+		image.data = ByteString.EMPTY;
+		replySender.sendError(image.imageId, error);
+	}
+
+	private void submit(Image image) {
+		converting.incrementAndGet();
+		long submitted = System.nanoTime();
+		try {
+			conversionExecutor.execute(client.getClientId(), weight, () -> {
+				ServerMetrics.recordPhase(ServerMetrics.Phase.QUEUE, System.nanoTime() - submitted);
+				convertAndReply(image);
+			});
+		} catch (RejectedExecutionException e) {
+			logger.log(Level.FINE, "Conversion queue is full!");
+			ServerMetrics.rejection("busy");
+			replySender.sendError(image.imageId, "Server is busy, too many conversions in progress! Try again later.");
+			imageSent();
+		}
+	}
+
+	private void convertAndReply(Image image) {
+		try {
+			if (replySender.isCancelled()) {
+				return;
+			}
+			ByteString imageToSend = converter.convert(image.data, image.typeOrigin, image.typeTarget, image.maxOutputBytes);
+			image.data = ByteString.EMPTY;
+			if (image.maxOutputBytes > 0 && imageToSend.size() > image.maxOutputBytes) {
+				logger.log(Level.FINE, "Output image size not acceptable!");
+				ServerMetrics.rejection("output_size");
+				replySender.sendError(image.imageId, "Output image size not acceptable!");
+			} else {
+				ServerMetrics.conversion(client.getClientId(), image.typeOrigin, image.typeTarget);
+				replySender.sendImage(image.imageId, imageToSend);
+			}
+		} catch (Exception e) {
+			logger.log(Level.INFO, "Conversion of image " + image.imageId + " has failed!", e);
+			ServerMetrics.rejection("conversion_error");
+			replySender.sendError(image.imageId, "Conversion failed!");
+		} finally {
+			imageSent();
+		}
+	}
+
+	private void imageSent() {
+		if (converting.decrementAndGet() == 0 && inputCompleted) {
+			releaseAdmission();
+			replySender.finish();
+		}
+	}	// the call is completed after the last image, when the client has sent all of them
+
+	private void releaseAdmission() {
+		if (admitted.compareAndSet(true, false)) {
+			admissionController.release(client.getClientId());
+		}
+	}
+
+	@Override
+	public void onError(Throwable t) {
+		if (t instanceof StatusRuntimeException
+				&& ((StatusRuntimeException) t).getStatus().getCode() == Status.CANCELLED.getCode()) {
+			logger.log(Level.INFO, "Client canceled the request.");
+		} else {
+			logger.log(Level.INFO, "Error in receiving the batch!", t);
+		}
+		receiving.clear();
+		inputCompleted = true;
+		if (converting.get() == 0) {
+			releaseAdmission();
+		}	// else the images still converting release it with the last one
+	}
+
+	@Override
+	public void onCompleted() {
+		logger.log(Level.FINE, "Batch has been received!");
+		for (Image image : receiving.values()) {
+			if (!image.failed) {
+				fail(image, "incomplete", "Image not completely received!");
+			}
+		}
+		receiving.clear();
+		inputCompleted = true;
+		if (converting.get() == 0) {
+			releaseAdmission();
+			replySender.finish();
+		}
+	}
+}
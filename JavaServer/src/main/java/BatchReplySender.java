@@ -0,0 +1,124 @@
+import conversion.BatchChunk;
+import conversion.BatchMetadataReply;
+import conversion.BatchReply;
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ServerCallStreamObserver;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+public final class BatchReplySender {
+	/*
+	Sends the results of a batch back to the client following the gRPC flow control, like ChunkedReplySender.
+	The results are sent in the order they are ready, each one is its metadata followed by the chunks of the image.
+	The chunks of an image are sent one after the other, they are never interleaved with the ones of another image.
+	The call is completed when the batch is finished and all the results have been sent.
+	*/
+	private final ServerCallStreamObserver<BatchReply> responseObserver;
+	private final int minChunkSize;
+	private final int maxChunkSize;
+	private final Queue<Result> results = new ArrayDeque<>();	// results waiting to be sent
+	private Result current;			// result being sent, null if there is none
+	private int chunkSize;
+	private int offset;				// first byte of the current image not sent yet
+	private boolean lastResult;		// no other results will be added
+	private boolean finished;
+	private boolean cancelled;
+
+	private static final class Result {
+		final int imageId;
+		final ByteString image;		// null if the conversion has failed
+		final String error;
+		final long created = System.nanoTime();		// the send time of the metrics starts when the result is ready
+
+		Result(int imageId, ByteString image, String error) {
+			this.imageId = imageId;
+			this.image = image;
+			this.error = error;
+		}
+	}
+
+	public BatchReplySender(ServerCallStreamObserver<BatchReply> responseObserver, int minChunkSize, int maxChunkSize) {
+		this.responseObserver = responseObserver;
+		this.minChunkSize = minChunkSize;
+		this.maxChunkSize = maxChunkSize;
+		responseObserver.setOnReadyHandler(this::drain);
+		responseObserver.setOnCancelHandler(this::cancel);
+	}
+
+	public synchronized void sendImage(int imageId, ByteString image) {
+		results.add(new Result(imageId, image, null));
+		drain();
+	}	// send the converted image of imageId
+
+	public synchronized void sendError(int imageId, String error) {
+		results.add(new Result(imageId, null, error));
+		drain();
+	}	// send the failure of the conversion of imageId
+
+	public synchronized void finish() {
+		lastResult = true;
+		drain();
+	}	// complete the call after the results already added
+
+	public synchronized void reject(Throwable error) {
+		if (!finished) {
+			finished = true;
+			results.clear();
+			responseObserver.onError(error);
+		}
+	}	// end the call with the error, the results not sent yet are dropped
+
+	public synchronized boolean isCancelled() {
+		return cancelled;
+	}	// return true if the client canceled the call, the conversions not started yet can be skipped
+
+	private synchronized void drain() {
+		if (finished) {
+			return;
+		}
+		while (responseObserver.isReady()) {
+			if (current == null) {
+				current = results.poll();
+				if (current == null) {
+					break;
+				}
+				responseObserver.onNext(BatchReply.newBuilder()
+						.setMeta(BatchMetadataReply.newBuilder()
+						.setImageId(current.imageId)
+						.setSuccess(current.image != null)
+						.setError(current.error == null ? "" : current.error))
+						.build());
+				if (current.image == null) {
+					current = null;
+					continue;
+				}
+				chunkSize = Math.max(minChunkSize, Math.min(maxChunkSize, current.image.size() / 8));
+				offset = 0;
+			}
+			int end = Math.min(offset + chunkSize, current.image.size());
+			responseObserver.onNext(BatchReply.newBuilder()
+					.setFile(BatchChunk.newBuilder()
+					.setImageId(current.imageId)
+					.setData(current.image.substring(offset, end))
+					.setLast(end == current.image.size()))
+					.build());
+			offset = end;
+			if (offset == current.image.size()) {
+				ServerMetrics.recordPhase(ServerMetrics.Phase.SEND, System.nanoTime() - current.created);
+				ServerMetrics.addBytesOut(current.image.size());
+				current = null;
+			}
+		}
+		if (lastResult && current == null && results.isEmpty()) {
+			finished = true;
+			responseObserver.onCompleted();
+		}
+	}	// send results until the client is not ready anymore
+
+	private synchronized void cancel() {
+		finished = true;
+		cancelled = true;
+		current = null;
+		results.clear();
+	}	// the client canceled the call, the images are released
+}
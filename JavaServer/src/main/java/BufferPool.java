@@ -0,0 +1,183 @@
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class BufferPool {
+	/*
+	Byte arrays reused by the conversions, shared by the whole server.
+	The arrays are in size classes (powers of two from MIN_SIZE to MAX_SIZE), each one with a bounded free list:
+	a buffer is acquired from the smallest class that fits and must be released by its owner when it is not used anymore,
+	a bigger buffer is never pooled. The arrays are on the heap: ImageIO and protobuf only read and write heap arrays.
+	Leak detection: one buffer every leakSample is tracked, if it is garbage collected without being released
+	the leak is counted and logged with the stack of the acquire.
+	The statistics are exported with the server metrics.
+	*/
+	private static final Logger logger = Logger.getLogger(BufferPool.class.getName());
+
+	public static final int MIN_SIZE = 4 * 1024;
+	public static final int MAX_SIZE = 1024 * 1024;
+	private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+	@SuppressWarnings("unchecked")
+	private static final ConcurrentLinkedDeque<byte[]>[] free = new ConcurrentLinkedDeque[CLASSES];
+	private static final AtomicInteger[] pooled = new AtomicInteger[CLASSES];	// arrays in each free list
+	private static final Cleaner cleaner = Cleaner.create();
+	private static final AtomicLong sequence = new AtomicLong();
+	private static final LongAdder acquires = new LongAdder();
+	private static final LongAdder allocations = new LongAdder();	// acquires that had to allocate a new array
+	private static final LongAdder releases = new LongAdder();
+	private static final LongAdder drops = new LongAdder();			// released arrays not kept, the free list was full
+	private static final LongAdder leaks = new LongAdder();
+
+	private static volatile int maxPooledBytes = 64 * 1024 * 1024;	// bytes kept in the free lists, split between the classes
+	private static volatile int leakSample = 128;					// one buffer tracked every leakSample, 0 = never
+
+	static {
+		for (int i = 0; i < CLASSES; i++) {
+			free[i] = new ConcurrentLinkedDeque<>();
+			pooled[i] = new AtomicInteger();
+		}
+	}
+
+	private BufferPool() {
+	}
+
+	public static void configure() {
+		maxPooledBytes = ServerConfiguration.getInt("buffer.pool.bytes", 64 * 1024 * 1024);
+		leakSample = ServerConfiguration.getInt("buffer.pool.leak.sample", 128);
+	}	// read the limits from the server configuration, the defaults are used until it is called
+
+	public static final class Buffer {
+		// a pooled array with its owner: only the owner uses it and releases it once
+		private final byte[] array;
+		private final int sizeClass;		// -1 if the array is not pooled
+		private LeakTracker tracker;
+		private boolean released;
+
+		private Buffer(byte[] array, int sizeClass) {
+			this.array = array;
+			this.sizeClass = sizeClass;
+		}
+
+		public byte[] array() {
+			if (released) {
+				throw new IllegalStateException("Buffer already released");
+			}
+			return array;
+		}
+
+		public int capacity() {
+			return array.length;
+		}
+
+		public void release() {
+			if (released) {
+				throw new IllegalStateException("Buffer released twice");
+			}
+			released = true;
+			if (tracker != null) {
+				tracker.released = true;
+				tracker.cleanable.clean();
+			}
+			BufferPool.release(array, sizeClass);
+		}
+	}
+
+	private static final class LeakTracker implements Runnable {
+		// run when the tracked buffer is released or garbage collected, it must not reference the buffer
+		private final Throwable acquiredAt = new Throwable("Buffer acquired here");
+		private volatile boolean released;
+		private Cleaner.Cleanable cleanable;
+
+		@Override
+		public void run() {
+			if (!released) {
+				leaks.increment();
+				logger.log(Level.WARNING, "Buffer garbage collected without being released!", acquiredAt);
+			}
+		}
+	}
+
+	public static Buffer acquire(int size) {
+		// return a buffer of at least size bytes
+		acquires.increment();
+		int sizeClass = sizeClass(size);
+		byte[] array = sizeClass < 0 ? null : free[sizeClass].pollFirst();
+		if (array != null) {
+			pooled[sizeClass].decrementAndGet();
+		} else {
+			allocations.increment();
+			array = new byte[sizeClass < 0 ? size : MIN_SIZE << sizeClass];
+		}
+		Buffer buffer = new Buffer(array, sizeClass);
+		int sample = leakSample;
+		if (sample > 0 && sequence.getAndIncrement() % sample == 0) {
+			LeakTracker tracker = new LeakTracker();
+			tracker.cleanable = cleaner.register(buffer, tracker);
+			buffer.tracker = tracker;
+		}
+		return buffer;
+	}
+
+	private static void release(byte[] array, int sizeClass) {
+		releases.increment();
+		if (sizeClass >= 0 && pooled[sizeClass].incrementAndGet() <= maxPooledBytes / CLASSES / array.length) {
+			free[sizeClass].offerFirst(array);		// the last released array is the next one acquired, still in the cache
+		} else {
+			if (sizeClass >= 0) {
+				pooled[sizeClass].decrementAndGet();
+			}
+			drops.increment();
+		}
+	}
+
+	private static int sizeClass(int size) {
+		if (size > MAX_SIZE) {
+			return -1;
+		}
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		int rounded = Integer.highestOneBit(size - 1) << 1;
+		return Integer.numberOfTrailingZeros(rounded / MIN_SIZE);
+	}	// smallest class with arrays of at least size bytes, -1 if it is too big to be pooled
+
+	public static long getOutstanding() {
+		return acquires.sum() - releases.sum();
+	}	// buffers acquired and not released yet
+
+	public static long getPooledBytes() {
+		long bytes = 0;
+		for (int i = 0; i < CLASSES; i++) {
+			bytes += (long) pooled[i].get() * (MIN_SIZE << i);
+		}
+		return bytes;
+	}
+
+	public static void export(StringBuilder out) {
+		// statistics in the Prometheus text format, see ServerMetrics
+		out.append("# TYPE buffer_pool_acquired_total counter\n");
+		out.append("buffer_pool_acquired_total ").append(acquires.sum()).append('\n');
+		out.append("# TYPE buffer_pool_allocated_total counter\n");
+		out.append("buffer_pool_allocated_total ").append(allocations.sum()).append('\n');
+		out.append("# TYPE buffer_pool_dropped_total counter\n");
+		out.append("buffer_pool_dropped_total ").append(drops.sum()).append('\n');
+		out.append("# TYPE buffer_pool_leaked_total counter\n");
+		out.append("buffer_pool_leaked_total ").append(leaks.sum()).append('\n');
+		out.append("# TYPE buffer_pool_outstanding gauge\n");
+		out.append("buffer_pool_outstanding ").append(getOutstanding()).append('\n');
+		out.append("# TYPE buffer_pool_pooled_bytes gauge\n");
+		out.append("buffer_pool_pooled_bytes ").append(getPooledBytes()).append('\n');
+	}
+
+	public static String summary() {
+		long acquired = acquires.sum();
+		long allocated = allocations.sum();
+		return "acquired " + acquired + ", reused " + (acquired - allocated) + ", allocated " + allocated
+				+ ", outstanding " + getOutstanding() + ", leaked " + leaks.sum() + ", pooled " + getPooledBytes() / 1024 + " KB";
+	}
+}
@@ -0,0 +1,62 @@
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ChunkedOutput extends OutputStream {
+	/*
+	OutputStream of an encoded image that keeps the bytes in chunks of the same size, joined without copies by toByteString.
+	Unlike ByteString.Output, the chunks do not double with the size of the image: a big image is never copied
+	to grow the buffer and never needs a humongous array. The chunks are not pooled, they are owned by the
+	returned ByteString (sent to the client and kept by the cache).
+	*/
+	private final int chunkSize;
+	private final List<ByteString> chunks = new ArrayList<>();
+	private byte[] chunk;
+	private int position;		// bytes written in chunk
+
+	public ChunkedOutput(int chunkSize) {
+		this.chunkSize = Math.max(BufferPool.MIN_SIZE, chunkSize);
+	}
+
+	@Override
+	public void write(int b) {
+		if (chunk == null || position == chunk.length) {
+			nextChunk();
+		}
+		chunk[position++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		while (len > 0) {
+			if (chunk == null || position == chunk.length) {
+				nextChunk();
+			}
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(b, off, chunk, position, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public ByteString toByteString() {
+		// the chunks are wrapped, they must not be written anymore
+		if (chunk != null) {
+			chunks.add(UnsafeByteOperations.unsafeWrap(chunk, 0, position));
+			chunk = null;
+			position = 0;
+		}
+		return ByteString.copyFrom(chunks);
+	}	// ByteString.copyFrom of ByteStrings concatenates them as a balanced rope, the bytes are not copied
+
+	private void nextChunk() {
+		if (chunk != null) {
+			chunks.add(UnsafeByteOperations.unsafeWrap(chunk));
+		}
+		chunk = new byte[chunkSize];
+		position = 0;
+	}
+}
@@ -0,0 +1,66 @@
+import conversion.ConversionReply;
+import com.google.protobuf.ByteString;
+import io.grpc.stub.ServerCallStreamObserver;
+
+public final class ChunkedReplySender {
+	/*
+	Sends the converted image back to the client following the gRPC flow control.
+	The chunks are views of the encoded image (no copies) and their size depends on the image size,
+	between minChunkSize and maxChunkSize. Chunks are sent only while the client is ready to receive them,
+	the remaining ones are sent by the onReady handler, so a slow client cannot make the server buffer the whole reply.
+	*/
+	private final ServerCallStreamObserver<ConversionReply> responseObserver;
+	private final int minChunkSize;
+	private final int maxChunkSize;
+	private ByteString image;		// image to send, null until the conversion is completed
+	private int chunkSize;
+	private int offset;				// first byte not sent yet
+	private boolean finished;
+	private long sendStart;			// time of the first chunk, for the metrics
+
+	public ChunkedReplySender(ServerCallStreamObserver<ConversionReply> responseObserver, int minChunkSize, int maxChunkSize) {
+		this.responseObserver = responseObserver;
+		this.minChunkSize = minChunkSize;
+		this.maxChunkSize = maxChunkSize;
+		responseObserver.setOnReadyHandler(this::drain);
+		responseObserver.setOnCancelHandler(this::cancel);
+	}
+
+	public synchronized void send(ByteString image) {
+		this.image = image;
+		this.chunkSize = chunkSizeFor(image.size());
+		this.offset = 0;
+		this.sendStart = System.nanoTime();
+		drain();
+	}	// start sending the image, the call is completed after the last chunk
+
+	private synchronized void drain() {
+		if (image == null || finished) {
+			return;
+		}
+		while (offset < image.size() && responseObserver.isReady()) {
+			int end = Math.min(offset + chunkSize, image.size());
+			responseObserver.onNext(ConversionReply.newBuilder()
+					.setFile(image.substring(offset, end))
+					.build());
+			offset = end;
+		}
+		if (offset == image.size()) {
+			ServerMetrics.recordPhase(ServerMetrics.Phase.SEND, System.nanoTime() - sendStart);
+			ServerMetrics.addBytesOut(image.size());
+			finished = true;
+			image = null;
+			responseObserver.onCompleted();
+		}
+	}	// send chunks until the client is not ready anymore
+
+	private synchronized void cancel() {
+		finished = true;
+		image = null;
+	}	// the client canceled the call, the image is released
+
+	private int chunkSizeFor(int imageSize) {
+		// about 8 chunks for each image, inside the configured limits
+		return Math.max(minChunkSize, Math.min(maxChunkSize, imageSize / 8));
+	}
+}
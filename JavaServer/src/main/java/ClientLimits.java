@@ -0,0 +1,58 @@
+public final class ClientLimits {
+	/*
+	Admission limits of a client, read from the rows "client <clientId> <concurrent> <rate> <burst> <weight>"
+	of the configuration file (clientId * is the default of the clients without their own row).
+	concurrent: conversions of the client in progress at the same time, 0 = no limit
+	rate: conversions started each second (token bucket refilled at this rate), 0 = no limit
+	burst: conversions that can be started at once after a pause (size of the token bucket)
+	weight: conversions of the client taken from the queue for each one of a client with weight 1
+	*/
+	public static final ClientLimits UNLIMITED = new ClientLimits(0, 0, 0, 1);
+
+	private final int maxConcurrent;
+	private final double rate;
+	private final int burst;
+	private final int weight;
+
+	public ClientLimits(int maxConcurrent, double rate, int burst, int weight) {
+		this.maxConcurrent = maxConcurrent;
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.weight = Math.max(1, weight);
+	}
+
+	public int getMaxConcurrent() {
+		return maxConcurrent;
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public int getBurst() {
+		return burst;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof ClientLimits)) {
+			return false;
+		}
+		ClientLimits limits = (ClientLimits) other;
+		return maxConcurrent == limits.maxConcurrent && rate == limits.rate && burst == limits.burst && weight == limits.weight;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((maxConcurrent * 31 + Double.hashCode(rate)) * 31 + burst) * 31 + weight;
+	}
+
+	@Override
+	public String toString() {
+		return "concurrent " + maxConcurrent + ", rate " + rate + "/s, burst " + burst + ", weight " + weight;
+	}
+}
@@ -0,0 +1,112 @@
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public final class ClientParameters {
+	/*
+	Immutable registration of a client: its Id and the negotiated input and output parameters
+	(max size in KB for each image type, 0 = no size limit).
+	It is read with a single lookup at the start of each conversion, so a conversion always sees
+	a consistent set of parameters.
+	*/
+	private final String clientId;
+	private final Map<ImageType, Integer> inputParameters;
+	private final Map<ImageType, Integer> outputParameters;
+
+	public ClientParameters(String clientId, Map<String, Integer> inputParameters, Map<String, Integer> outputParameters) {
+		this(clientId, toEnumMap(inputParameters), toEnumMap(outputParameters));
+	}
+
+	public ClientParameters(String clientId, EnumMap<ImageType, Integer> inputParameters, EnumMap<ImageType, Integer> outputParameters) {
+		this.clientId = clientId;
+		this.inputParameters = Collections.unmodifiableMap(new EnumMap<>(inputParameters));
+		this.outputParameters = Collections.unmodifiableMap(new EnumMap<>(outputParameters));
+	}
+
+	public String getClientId() {
+		return clientId;
+	}
+
+	public boolean acceptsInput(ImageType imgType) {
+		return imgType != null && inputParameters.containsKey(imgType);
+	}	// return true if the input type has been negotiated
+
+	public boolean acceptsOutput(ImageType imgType) {
+		return imgType != null && outputParameters.containsKey(imgType);
+	}	// return true if the output type has been negotiated
+
+	public long getMaxInputBytes(ImageType imgType) {
+		Integer maxSize = inputParameters.get(imgType);
+		return maxSize == null ? 0 : maxSize * 1024L;
+	}	// return the negotiated input size in bytes, 0 = no size limit
+
+	public long getMaxOutputBytes(ImageType imgType) {
+		Integer maxSize = outputParameters.get(imgType);
+		return maxSize == null ? 0 : maxSize * 1024L;
+	}	// return the negotiated output size in bytes, 0 = no size limit
+
+	public Map<ImageType, Integer> getInputLimits() {
+		return inputParameters;
+	}	// return the negotiated input type and size (KB)
+
+	public Map<ImageType, Integer> getOutputLimits() {
+		return outputParameters;
+	}	// return the negotiated output type and size (KB)
+
+	public Map<String, Integer> getInputParameters() {
+		return toNameMap(inputParameters);
+	}	// return the negotiated input type and size (KB), with the type names
+
+	public Map<String, Integer> getOutputParameters() {
+		return toNameMap(outputParameters);
+	}	// return the negotiated output type and size (KB), with the type names
+
+	public boolean hasSameLimits(ClientParameters other) {
+		return inputParameters.equals(other.inputParameters) && outputParameters.equals(other.outputParameters);
+	}	// same negotiated types and sizes, the clientId is not compared
+
+	public ClientParameters limitedTo(AcceptableParameters acceptable) {
+		// the negotiated sizes lowered to the acceptable ones, the types no longer accepted are removed
+		return new ClientParameters(clientId,
+				limit(inputParameters, acceptable.getInputParameters()),
+				limit(outputParameters, acceptable.getOutputParameters()));
+	}	// the same parameters if they are already within the acceptable ones
+
+	private static EnumMap<ImageType, Integer> limit(Map<ImageType, Integer> negotiated, Map<String, Integer> acceptable) {
+		// negotiated sizes lowered to the acceptable ones (0 = no size limit)
+		EnumMap<ImageType, Integer> limited = new EnumMap<>(ImageType.class);
+		for (Map.Entry<ImageType, Integer> entry : negotiated.entrySet()) {
+			Integer maxAdmissibleSize = acceptable.get(entry.getKey().name());
+			if (maxAdmissibleSize == null) {
+				continue;						// type no longer accepted
+			}
+			int size = entry.getValue();
+			if (maxAdmissibleSize != 0 && (size == 0 || size > maxAdmissibleSize)) {
+				size = maxAdmissibleSize;
+			}
+			limited.put(entry.getKey(), size);
+		}
+		return limited;
+	}
+
+	private static EnumMap<ImageType, Integer> toEnumMap(Map<String, Integer> parameters) {
+		// the types not known by the server are skipped
+		EnumMap<ImageType, Integer> enumMap = new EnumMap<>(ImageType.class);
+		for (Map.Entry<String, Integer> entry : parameters.entrySet()) {
+			ImageType imgType = ImageType.parse(entry.getKey());
+			if (imgType != null) {
+				enumMap.put(imgType, entry.getValue());
+			}
+		}
+		return enumMap;
+	}
+
+	private static Map<String, Integer> toNameMap(Map<ImageType, Integer> parameters) {
+		Map<String, Integer> nameMap = new LinkedHashMap<>();
+		for (Map.Entry<ImageType, Integer> entry : parameters.entrySet()) {
+			nameMap.put(entry.getKey().name(), entry.getValue());
+		}
+		return nameMap;
+	}
+}
@@ -0,0 +1,285 @@
+import cluster.ClientRecord;
+import cluster.ClusterGrpc;
+import cluster.SnapshotRequest;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import registration.ClientIdRequest;
+import registration.ClientRegistrationRequest;
+import registration.ClientRegistrationResponse;
+import registration.RegistratorGrpc;
+
+public final class ClusterNode {
+	/*
+	Node of a cluster of conversion servers sharing the registered clients (multi-node mode, cluster.nodes).
+	Each clientId is owned by one node of the HashRing, the same on all nodes:
+	- the owner registers the client, so a clientId is unique in the whole cluster; a node that receives the
+	  registration of a client it does not own forwards it to the owner and relays the response
+	- the owner replicates the registration to the other nodes: each peer has a queue of the registrations
+	  to send, sent in order by its own thread and retried until the peer receives them (a log for each peer)
+	- a node that starts reads the registered clients of each peer (snapshot), so it catches up after a restart
+	Every node can then convert the images of every client; the clients that route to the owner of their
+	clientId (ClusterRouter) also find their converted images in its cache.
+	The replication is asynchronous: a conversion on another node just after the registration can find
+	the client not registered yet.
+	The Cluster service is served on a peer port (the port of the node plus cluster.peer.port.offset, the same
+	offset on all nodes), not on the port of the clients; with cluster.secret the calls carry the secret and
+	the ones without it are refused. A replicated client is limited to the acceptable parameters of this node,
+	as done by the reload of the configuration.
+	*/
+	private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+	public static final Metadata.Key<String> SECRET_KEY = Metadata.Key.of("cluster-secret", Metadata.ASCII_STRING_MARSHALLER);
+
+	private final String self;				// address of this node, as written in the list of the nodes
+	private final HashRing ring;
+	private final RegistryStore registryStore;	// the replicated clients are saved too, null if they are kept only in memory
+	private final long retryMillis;			// wait before sending again to a node not available
+	private final long timeoutMillis;		// deadline of the calls to the other nodes
+	private final int peerPortOffset;		// the Cluster service is on the port of the node plus the offset
+	private final String secret;			// sent to the other nodes, null if the peers are not authenticated
+	private final Map<String, Peer> peers = new LinkedHashMap<>();
+	private volatile boolean closed;
+
+	private static final class Peer {
+		private final String address;
+		private final ManagedChannel channel;		// port of the clients, for the forwarded registrations
+		private final ManagedChannel peerChannel;	// peer port, for the Cluster service
+		private final LinkedBlockingQueue<ClientParameters> queue = new LinkedBlockingQueue<>();	// registrations to send
+		private Thread sender;
+
+		private Peer(String address, int peerPortOffset) {
+			this.address = address;
+			this.channel = ManagedChannelBuilder.forTarget(address).usePlaintext().build();
+			this.peerChannel = ManagedChannelBuilder.forTarget(peerAddress(address, peerPortOffset)).usePlaintext().build();
+		}
+	}
+
+	public ClusterNode(String self, List<String> nodes, int virtualNodes, RegistryStore registryStore, long retryMillis, long timeoutMillis,
+			int peerPortOffset, String secret) {
+		this.self = self;
+		this.ring = new HashRing(nodes, virtualNodes);
+		this.registryStore = registryStore;
+		this.retryMillis = retryMillis;
+		this.timeoutMillis = timeoutMillis;
+		this.peerPortOffset = peerPortOffset;
+		this.secret = secret == null || secret.isEmpty() ? null : secret;
+		for (String node : nodes) {
+			if (!node.equals(self)) {
+				peers.put(node, new Peer(node, peerPortOffset));
+			}
+		}
+	}
+
+	public static ClusterNode fromConfiguration(RegistryStore registryStore) {
+		// read the nodes from the server configuration, returns null in single node mode
+		List<String> nodes = parseNodes(ServerConfiguration.getString("cluster.nodes", ""));
+		if (nodes.isEmpty()) {
+			return null;
+		}
+		String self = ServerConfiguration.getString("cluster.node", "localhost:" + ServerConfiguration.getInt("server.port", 50051));
+		if (!nodes.contains(self)) {
+			System.out.println("This node (" + self + ") is not in cluster.nodes, it runs as a single node");
+			return null;
+		}
+		return new ClusterNode(self, nodes,
+				ServerConfiguration.getInt("cluster.virtual.nodes", 64),
+				registryStore,
+				ServerConfiguration.getInt("cluster.retry.ms", 1000),
+				ServerConfiguration.getInt("cluster.timeout.ms", 10000),
+				ServerConfiguration.getInt("cluster.peer.port.offset", 1000),
+				ServerConfiguration.getString("cluster.secret", ""));
+	}
+
+	public static List<String> parseNodes(String nodes) {
+		List<String> list = new ArrayList<>();
+		for (String node : nodes.split(",")) {
+			if (!node.trim().isEmpty()) {
+				list.add(node.trim());
+			}
+		}
+		return list;
+	}	// nodes separated by commas, host:port
+
+	public static String peerAddress(String node, int peerPortOffset) {
+		int colon = node.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("Node " + node + " without port, expected host:port");
+		}
+		return node.substring(0, colon + 1) + (Integer.parseInt(node.substring(colon + 1)) + peerPortOffset);
+	}	// address of the Cluster service of a node
+
+	public void start() {
+		// one thread for each peer, it catches up with the clients of the peer and then sends the registrations
+		for (Peer peer : peers.values()) {
+			peer.sender = new Thread(() -> sendLoop(peer), "cluster-" + peer.address);
+			peer.sender.setDaemon(true);
+			peer.sender.start();
+		}
+	}
+
+	public void close() {
+		closed = true;
+		for (Peer peer : peers.values()) {
+			if (peer.sender != null) {
+				peer.sender.interrupt();
+			}
+			peer.channel.shutdownNow();
+			peer.peerChannel.shutdownNow();
+		}
+	}	// the registrations not sent yet are read by the peers with the snapshot when this node starts again
+
+	public String getSelf() {
+		return self;
+	}
+
+	public int getPeerPort() {
+		String address = peerAddress(self, peerPortOffset);
+		return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+	}	// port of the Cluster service of this node
+
+	public String getSecret() {
+		return secret;
+	}	// null if the peers are not authenticated
+
+	public List<String> getNodes() {
+		return ring.getNodes();
+	}
+
+	public boolean isOwner(String clientId) {
+		return self.equals(ring.owner(clientId));
+	}	// return true if this node registers the client
+
+	public void forwardRegistration(ClientRegistrationRequest request, StreamObserver<ClientRegistrationResponse> responseObserver) {
+		// the registration is done by the owner of the client, its response (or error) is sent back as it is
+		String owner = ring.owner(request.getClientId());
+		logger.log(Level.FINE, "Registration forwarded to " + owner);
+		RegistratorGrpc.newStub(peers.get(owner).channel).withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+				.registerClient(request, relay(owner, responseObserver));
+	}
+
+	public void forwardParametersRead(ClientIdRequest request, StreamObserver<ClientRegistrationResponse> responseObserver) {
+		// a client not replicated yet is read from its owner
+		String owner = ring.owner(request.getClientId());
+		RegistratorGrpc.newStub(peers.get(owner).channel).withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS)
+				.getNegotiatedParameters(request, relay(owner, responseObserver));
+	}
+
+	public void replicate(ClientParameters client) {
+		for (Peer peer : peers.values()) {
+			peer.queue.offer(client);
+		}
+	}	// send the registration of a client owned by this node to all the other nodes
+
+	public void receive(ClientParameters client) {
+		// registration replicated by its owner, it replaces the one of this node, within the parameters accepted here
+		client = client.limitedTo(SharedParameters.getAcceptableParameters());
+		SharedParameters.putClient(client);
+		if (registryStore != null) {
+			registryStore.append(client).whenComplete((saved, error) -> {
+				if (error != null) {
+					logger.log(Level.WARNING, "Replicated registration not saved, it will be read again from the other nodes at restart", error);
+				}
+			});
+		}
+	}
+
+	public static ClientRecord toRecord(ClientParameters client) {
+		return ClientRecord.newBuilder()
+				.setClientId(client.getClientId())
+				.putAllInputParameters(client.getInputParameters())
+				.putAllOutputParameters(client.getOutputParameters())
+				.build();
+	}
+
+	public static ClientParameters fromRecord(ClientRecord record) {
+		return new ClientParameters(record.getClientId(), record.getInputParametersMap(), record.getOutputParametersMap());
+	}
+
+	private void sendLoop(Peer peer) {
+		ClusterGrpc.ClusterBlockingStub stub = ClusterGrpc.newBlockingStub(peer.peerChannel);
+		if (secret != null) {
+			Metadata headers = new Metadata();
+			headers.put(SECRET_KEY, secret);
+			stub = stub.withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+		}
+		boolean caughtUp = false;
+		ClientParameters next = null;
+		while (!closed) {
+			try {
+				if (!caughtUp) {
+					catchUp(peer, stub);
+					caughtUp = true;
+				}
+				if (next == null) {
+					next = peer.queue.take();
+				}
+				stub.withDeadlineAfter(timeoutMillis, TimeUnit.MILLISECONDS).replicate(toRecord(next));
+				next = null;		// received, the next registration is sent
+			} catch (InterruptedException e) {
+				return;
+			} catch (StatusRuntimeException e) {
+				// the peer is not available: the same registration is sent again later, the order is kept
+				logger.log(Level.FINE, "Node " + peer.address + " not available: " + e.getStatus());
+				try {
+					Thread.sleep(retryMillis);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void catchUp(Peer peer, ClusterGrpc.ClusterBlockingStub stub) {
+		// read the registered clients of the peer: the ones it owns replace ours, the others are added if missing
+		long start = System.nanoTime();
+		int added = 0;
+		Iterator<ClientRecord> records = stub.snapshot(SnapshotRequest.newBuilder().setNode(self).build());
+		while (records.hasNext()) {
+			ClientParameters client = fromRecord(records.next()).limitedTo(SharedParameters.getAcceptableParameters());
+			ClientParameters current = SharedParameters.getClient(client.getClientId());
+			boolean ownedByPeer = peer.address.equals(ring.owner(client.getClientId()));
+			if (current == null || (ownedByPeer && !client.hasSameLimits(current))) {
+				receive(client);
+				added++;
+			}
+		}
+		System.out.println("Clients read from node " + peer.address + ": " + added + " in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	private static StreamObserver<ClientRegistrationResponse> relay(String owner, StreamObserver<ClientRegistrationResponse> responseObserver) {
+		return new StreamObserver<ClientRegistrationResponse>() {
+			@Override
+			public void onNext(ClientRegistrationResponse response) {
+				responseObserver.onNext(response);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				Status status = Status.fromThrowable(t);
+				logger.log(Level.INFO, "Node " + owner + " not available: " + status);
+				responseObserver.onError(Status.UNAVAILABLE
+						.withDescription("Node " + owner + " of this client is not available, try again later!")
+						.withCause(t)
+						.asRuntimeException());
+			}
+
+			@Override
+			public void onCompleted() {
+				responseObserver.onCompleted();
+			}
+		};
+	}
+}
@@ -0,0 +1,41 @@
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public final class ClusterRouter {
+	/*
+	Client side routing to a cluster of conversion servers: each clientId is sent to the node that owns it,
+	with the same HashRing of the nodes (same list of nodes and virtual nodes of cluster.nodes and cluster.virtual.nodes).
+	The owner registers the client without forwarding it and keeps its converted images in its cache.
+	The client can also use any node: the registration is forwarded to the owner and the conversions work on every node.
+	*/
+	private final HashRing ring;
+	private final Map<String, ManagedChannel> channels = new LinkedHashMap<>();
+
+	public ClusterRouter(List<String> nodes, int virtualNodes) {
+		this.ring = new HashRing(nodes, virtualNodes);
+		for (String node : nodes) {
+			channels.put(node, ManagedChannelBuilder.forTarget(node).usePlaintext().build());
+		}
+	}
+
+	public String node(String clientId) {
+		return ring.owner(clientId);
+	}	// return the node that owns the client
+
+	public ManagedChannel channel(String clientId) {
+		return channels.get(ring.owner(clientId));
+	}	// return the channel to the node that owns the client, shared by all its clients
+
+	public void close() throws InterruptedException {
+		for (ManagedChannel channel : channels.values()) {
+			channel.shutdown();
+		}
+		for (ManagedChannel channel : channels.values()) {
+			channel.awaitTermination(5, TimeUnit.SECONDS);
+		}
+	}
+}
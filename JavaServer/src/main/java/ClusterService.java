@@ -0,0 +1,75 @@
+import cluster.ClientRecord;
+import cluster.ClusterGrpc;
+import cluster.ReplicateReply;
+import cluster.SnapshotRequest;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class ClusterService extends ClusterGrpc.ClusterImplBase {
+	/*
+	Service called by the other nodes of the cluster (see ClusterNode):
+	replicate: registration of a client owned by the calling node
+	snapshot: all the clients registered on this node, sent following the flow control of the caller
+	It is served only on the peer port of the node; with a secret the calls without it are refused (authentication).
+	*/
+	private static final Logger logger = Logger.getLogger(ClusterService.class.getName());
+
+	private final ClusterNode clusterNode;
+
+	public ClusterService(ClusterNode clusterNode) {
+		this.clusterNode = clusterNode;
+	}
+
+	public static ServerInterceptor authentication(String secret) {
+		// the calls must carry the secret of the cluster, compared in constant time
+		final byte[] expected = secret.getBytes(StandardCharsets.UTF_8);
+		return new ServerInterceptor() {
+			@Override
+			public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+				String received = headers.get(ClusterNode.SECRET_KEY);
+				if (received == null || !MessageDigest.isEqual(expected, received.getBytes(StandardCharsets.UTF_8))) {
+					logger.log(Level.FINE, "Cluster call refused, wrong secret");
+					ServerMetrics.rejection("cluster_secret");
+					call.close(Status.UNAUTHENTICATED.withDescription("Not a node of the cluster!"), new Metadata());
+					return new ServerCall.Listener<ReqT>() {};
+				}
+				return next.startCall(call, headers);
+			}
+		};
+	}
+
+	@Override
+	public void replicate(ClientRecord record, StreamObserver<ReplicateReply> responseObserver) {
+		clusterNode.receive(ClusterNode.fromRecord(record));
+		responseObserver.onNext(ReplicateReply.getDefaultInstance());
+		responseObserver.onCompleted();
+	}
+
+	@Override
+	public void snapshot(SnapshotRequest request, StreamObserver<ClientRecord> responseObserver) {
+		logger.log(Level.INFO, "Registered clients sent to node " + request.getNode());
+		final ServerCallStreamObserver<ClientRecord> call = (ServerCallStreamObserver<ClientRecord>) responseObserver;
+		final Iterator<ClientParameters> clients = SharedParameters.getClients().iterator();
+		final AtomicBoolean completed = new AtomicBoolean(false);
+		// the clients are sent while the caller is ready, the handler is called again when it can receive more
+		call.setOnReadyHandler(() -> {
+			while (call.isReady() && clients.hasNext()) {
+				call.onNext(ClusterNode.toRecord(clients.next()));
+			}
+			if (!clients.hasNext() && completed.compareAndSet(false, true)) {
+				call.onCompleted();
+			}
+		});
+	}
+}
@@ -0,0 +1,246 @@
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class ConversionCache {
+	/*
+	Cache of the converted images, the key is the SHA-256 of the input image plus the origin and target types.
+	The hash covers the parameters that change the encoded image too (engine, codec, fit and banded keys of the server
+	configuration), so after a change of the codec settings the images encoded with the old ones are not found
+	anymore and they are evicted from the disk tier in LRU order.
+	memory: converted images kept in heap, evicted in LRU order when their total size is over maxMemoryBytes
+	disk: optional second tier, one file for each converted image in the cache directory, read with a memory map.
+	The files survive a restart and they are evicted in LRU order when their total size is over maxDiskBytes.
+	*/
+	private static final Logger logger = Logger.getLogger(ConversionCache.class.getName());
+
+	private final long maxMemoryBytes;
+	private final LinkedHashMap<String, ByteString> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryBytes;
+
+	private final Path directory;		// null if the disk tier is disabled
+	private final long maxDiskBytes;
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+	private long diskBytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+	private final byte[] settings;		// parameters of the encoding, part of every key
+
+	public ConversionCache(long maxMemoryBytes, Path directory, long maxDiskBytes, String settings) {
+		this.settings = settings.getBytes(StandardCharsets.UTF_8);
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.directory = directory;
+		this.maxDiskBytes = maxDiskBytes;
+		if (directory != null) {
+			loadDirectory();
+		}
+	}
+
+	public static ConversionCache fromConfiguration() {
+		// read the cache parameters from the server configuration, returns null if the cache is disabled
+		if (!ServerConfiguration.getBoolean("cache.enabled", true)) {
+			return null;
+		}
+		long maxMemoryBytes = ServerConfiguration.getInt("cache.memory.kb", 64 * 1024) * 1024L;
+		String directory = ServerConfiguration.getString("cache.disk.directory", "");
+		long maxDiskBytes = ServerConfiguration.getInt("cache.disk.kb", 512 * 1024) * 1024L;
+		return new ConversionCache(maxMemoryBytes, directory.isEmpty() ? null : new File(directory).toPath(), maxDiskBytes,
+				ServerConfiguration.fingerprint("engine.", "codec.", "fit.", "banded."));
+	}
+
+	public String key(ByteString image, ImageType typeOrigin, ImageType typeTarget) {
+		// hash of the encoding parameters and of the input image, computed on its chunks without copying them
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(settings);
+			for (ByteBuffer buffer : image.asReadOnlyByteBufferList()) {
+				digest.update(buffer);
+			}
+			StringBuilder key = new StringBuilder();
+			for (byte b : digest.digest()) {
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			}
+			return key.append('.').append(typeOrigin.name()).append('.').append(typeTarget.name()).toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);	// SHA-256 is available in every JVM
+		}
+	}
+
+	public ByteString get(String key) {
+		// return the converted image, or null if it is not in the cache
+		ByteString image;
+		synchronized (memory) {
+			image = memory.get(key);
+		}
+		if (image == null && directory != null) {
+			image = readFromDisk(key);
+		}
+		if (image == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+			bytesSaved.addAndGet(image.size());
+		}
+		return image;
+	}
+
+	public void put(String key, ByteString image) {
+		// add the converted image, images bigger than a quarter of the cache are not saved in memory
+		if (image.size() <= maxMemoryBytes / 4) {
+			synchronized (memory) {
+				ByteString previous = memory.put(key, image);
+				memoryBytes += image.size() - (previous == null ? 0 : previous.size());
+				Iterator<Map.Entry<String, ByteString>> eldest = memory.entrySet().iterator();
+				while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+					memoryBytes -= eldest.next().getValue().size();
+					eldest.remove();
+				}
+			}
+		}
+		if (directory != null && image.size() <= maxDiskBytes / 4) {
+			writeToDisk(key, image);
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public double getHitRatio() {
+		long total = hits.get() + misses.get();
+		return total == 0 ? 0 : (double) hits.get() / total;
+	}	// return the fraction of the conversions served by the cache
+
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}	// return the size of the converted images served by the cache without converting them
+
+	public void export(StringBuilder out) {
+		// statistics in the Prometheus text format, see ServerMetrics
+		out.append("# TYPE conversion_cache_hits_total counter\n");
+		out.append("conversion_cache_hits_total ").append(getHits()).append('\n');
+		out.append("# TYPE conversion_cache_misses_total counter\n");
+		out.append("conversion_cache_misses_total ").append(getMisses()).append('\n');
+		out.append("# TYPE conversion_cache_hit_ratio gauge\n");
+		out.append("conversion_cache_hit_ratio ").append(getHitRatio()).append('\n');
+		out.append("# TYPE conversion_cache_saved_bytes_total counter\n");
+		out.append("conversion_cache_saved_bytes_total ").append(getBytesSaved()).append('\n');
+	}
+
+	@Override
+	public String toString() {
+		return String.format("hits: %d, misses: %d, hit ratio: %.2f, bytes saved: %d",
+				getHits(), getMisses(), getHitRatio(), getBytesSaved());
+	}
+
+	private ByteString readFromDisk(String key) {
+		synchronized (disk) {
+			if (disk.get(key) == null) {
+				return null;
+			}
+		}
+		try (FileChannel channel = FileChannel.open(directory.resolve(key), StandardOpenOption.READ)) {
+			// the mapped file is sent as it is, without copying it in heap
+			return UnsafeByteOperations.unsafeWrap(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Error while reading the cache file " + key, e);
+			synchronized (disk) {
+				Long size = disk.remove(key);
+				diskBytes -= size == null ? 0 : size;
+			}
+			return null;
+		}
+	}
+
+	private void writeToDisk(String key, ByteString image) {
+		synchronized (disk) {
+			if (disk.containsKey(key)) {
+				return;
+			}
+		}
+		try {
+			// the file is written with a temporary name and then renamed, so a partial file is never read
+			Path temporary = Files.createTempFile(directory, key, ".tmp");
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+				for (ByteBuffer buffer : image.asReadOnlyByteBufferList()) {
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+				}
+			}
+			Files.move(temporary, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Error while writing the cache file " + key, e);
+			return;
+		}
+		synchronized (disk) {
+			Long previous = disk.put(key, (long) image.size());
+			diskBytes += image.size() - (previous == null ? 0 : previous);
+			evictFromDisk();
+		}
+	}
+
+	private void evictFromDisk() {
+		// called holding the disk lock
+		Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+		while (diskBytes > maxDiskBytes && eldest.hasNext()) {
+			Map.Entry<String, Long> entry = eldest.next();
+			diskBytes -= entry.getValue();
+			eldest.remove();
+			try {
+				Files.deleteIfExists(directory.resolve(entry.getKey()));
+			} catch (IOException e) {
+				logger.log(Level.INFO, "Error while deleting the cache file " + entry.getKey(), e);
+			}
+		}
+	}
+
+	private void loadDirectory() {
+		// index the files saved before the restart, the oldest ones are evicted first
+		File[] files = directory.toFile().listFiles();
+		if (files == null) {
+			try {
+				Files.createDirectories(directory);
+			} catch (IOException e) {
+				logger.log(Level.INFO, "Error while creating the cache directory " + directory, e);
+			}
+			return;
+		}
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		synchronized (disk) {
+			for (File file : files) {
+				if (file.getName().endsWith(".tmp")) {
+					file.delete();			// partial file of a previous run
+				} else if (file.isFile()) {
+					disk.put(file.getName(), file.length());
+					diskBytes += file.length();
+				}
+			}
+			evictFromDisk();
+		}
+	}
+}
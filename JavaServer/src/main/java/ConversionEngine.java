@@ -0,0 +1,43 @@
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+public interface ConversionEngine {
+	/*
+	Codec used by the Converter service to decode the received images and to encode the converted ones.
+	Image types are the ones of the configuration file (PNG, JPG, GIF, ...), case insensitive.
+	Implementations must be thread safe, they are shared between all the conversion workers.
+	The implementation is chosen with the "engine.class" parameter of the server configuration file.
+	*/
+
+	boolean canRead(String imgType);		// return true if images of this type can be decoded
+
+	boolean canWrite(String imgType);		// return true if images of this type can be encoded
+
+	BufferedImage read(InputStream input, String imgType) throws IOException;
+
+	void write(BufferedImage image, String imgType, OutputStream output) throws IOException;
+
+	default Dimension readSize(InputStream input, String imgType) throws IOException {
+		return null;
+	}	// width and height read from the header only, null if the engine cannot convert the image in bands
+
+	default void writeBanded(InputStream input, String typeOrigin, String typeTarget, OutputStream output,
+			int bandPixels, int subsampling, AlphaFlattener flattener) throws IOException {
+		// decode and encode the image a band of bandPixels pixels at a time (see BandedImage), flattened if flattener is not null
+		throw new IOException("Banded conversion not supported!");
+	}
+
+	static ConversionEngine fromConfiguration() {
+		// create the engine chosen in the server configuration, the default one is based on ImageIO
+		String className = ServerConfiguration.getString("engine.class", ImageIOConversionEngine.class.getName());
+		try {
+			return (ConversionEngine) Class.forName(className).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | ClassCastException e) {
+			System.out.println("Invalid conversion engine: " + className + ", using the default one");
+			return new ImageIOConversionEngine();
+		}
+	}
+}
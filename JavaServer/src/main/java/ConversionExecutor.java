@@ -0,0 +1,120 @@
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class ConversionExecutor {
+	/*
+	Bounded worker pool where the conversions (decode, convert, encode and send) are executed,
+	so that they don't run on the gRPC transport threads and they don't serialize on a single lock.
+	workers: number of conversions executed at the same time
+	queue: number of conversions that can wait for a free worker, when it is full new conversions are rejected.
+	The waiting conversions of different clients are taken in weighted round-robin (see FairTaskQueue).
+	virtual: use virtual threads instead of platform threads (only if the JVM supports them)
+	*/
+	private static final Logger logger = Logger.getLogger(ConversionExecutor.class.getName());
+
+	private final ThreadPoolExecutor pool;
+	private final AtomicLong rejectedTasks = new AtomicLong();
+
+	public ConversionExecutor(int workers, int queueCapacity, boolean virtualThreads) {
+		ThreadFactory threadFactory = virtualThreads ? virtualThreadFactory() : null;
+		if (threadFactory == null) {
+			threadFactory = platformThreadFactory();
+		}
+		this.pool = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+				new FairTaskQueue(queueCapacity), threadFactory);
+	}
+
+	public static ConversionExecutor fromConfiguration() {
+		// read the pool size from the server configuration, by default one worker for each core
+		int workers = ServerConfiguration.getInt("worker.threads", Runtime.getRuntime().availableProcessors());
+		int queueCapacity = ServerConfiguration.getInt("worker.queue", 64);
+		boolean virtualThreads = "virtual".equalsIgnoreCase(ServerConfiguration.getString("worker.type", "platform"));
+		return new ConversionExecutor(Math.max(1, workers), Math.max(1, queueCapacity), virtualThreads);
+	}
+
+	public void execute(Runnable task) throws RejectedExecutionException {
+		try {
+			pool.execute(task);
+		} catch (RejectedExecutionException e) {
+			rejectedTasks.incrementAndGet();
+			throw e;
+		}
+	}	// run the task on a worker, throw RejectedExecutionException if the queue is full
+	
+	public void execute(String clientId, int weight, Runnable task) throws RejectedExecutionException {
+		execute(new FairTaskQueue.ClientTask(clientId, weight, task));
+	}	// run the conversion of the client, in its turn with the conversions of the other clients
+
+	public int getQueueDepth() {
+		return pool.getQueue().size();
+	}	// return the number of conversions waiting for a worker
+
+	public int getQueueCapacity() {
+		return pool.getQueue().size() + pool.getQueue().remainingCapacity();
+	}	// return the maximum number of conversions that can wait for a worker
+
+	public int getActiveWorkers() {
+		return pool.getActiveCount();
+	}	// return the number of workers currently executing a conversion
+
+	public int getWorkers() {
+		return pool.getMaximumPoolSize();
+	}	// return the size of the pool
+
+	public long getRejectedTasks() {
+		return rejectedTasks.get();
+	}	// return the number of conversions rejected because the queue was full
+
+	public void export(StringBuilder out) {
+		// statistics in the Prometheus text format, see ServerMetrics
+		out.append("# TYPE conversion_queue_depth gauge\n");
+		out.append("conversion_queue_depth ").append(getQueueDepth()).append('\n');
+		out.append("# TYPE conversion_queue_capacity gauge\n");
+		out.append("conversion_queue_capacity ").append(getQueueCapacity()).append('\n');
+		out.append("# TYPE conversion_workers_active gauge\n");
+		out.append("conversion_workers_active ").append(getActiveWorkers()).append('\n');
+		out.append("# TYPE conversion_workers gauge\n");
+		out.append("conversion_workers ").append(getWorkers()).append('\n');
+		out.append("# TYPE conversion_queue_rejected_total counter\n");
+		out.append("conversion_queue_rejected_total ").append(getRejectedTasks()).append('\n');
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return pool.awaitTermination(timeout, unit);
+	}
+
+	private static ThreadFactory platformThreadFactory() {
+		final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+		final AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = defaultFactory.newThread(runnable);
+			thread.setName("conversion-worker-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static ThreadFactory virtualThreadFactory() {
+		// Thread.ofVirtual() is available only from Java 21, the server is compiled for Java 11 so it is looked up at runtime
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "conversion-worker-", 1L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			logger.log(Level.WARNING, "Virtual threads are not supported by this JVM, using platform threads!");
+			return null;
+		}
+	}
+}
@@ -1,8 +1,10 @@
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -12,10 +14,23 @@ import java.util.concurrent.TimeUnit;
 public final class ConversionServer {
   public static void main(String[] args) throws IOException, InterruptedException {
 	
+	// setting Server configuration file (another one can be given as argument), if it is missing the default values are used
+	File serverConfigurationFile = new File(args.length > 0 ? args[0] : "conversion_server_configuration.txt");
+	if (serverConfigurationFile.exists() && serverConfigurationFile.isFile()) {
+		ServerConfiguration.load(serverConfigurationFile);
+		System.out.println("Server configuration file successfully loaded");
+	}
+	
+	// buffers reused by the conversions
+	BufferPool.configure();
+	
+	// codec of the images, only the image types supported by the engine are accepted
+	final ConversionEngine conversionEngine = ConversionEngine.fromConfiguration();
+	
 	// setting Configuration file
 	File configurationFile = new File("conversion_parameters_server.txt");
 	if (configurationFile.exists() && configurationFile.isFile()) {
-		SharedParameters.setAcceptableParameters(configurationFile);
+		SharedParameters.setAcceptableParameters(configurationFile, conversionEngine);
 		System.out.println("Configuration file successfully loaded");
 	} else {
         System.out.println("Error while reading the configuration file");
@@ -28,16 +43,84 @@ public final class ConversionServer {
     System.out.println("Acceptable Input Parameters: " + acceptableInputParameters);
     System.out.println("Acceptable Output Parameters: " + acceptableOutputParameters);
 	
-    int port = 50051;
-    final Server server = ServerBuilder.forPort(port)
-        .addService(new Converter())
-        .addService(new Registrator())
-        .build()
-        .start();
-    System.out.println("Listening on port " + port);
+    // registered clients saved before the restart
+    final RegistryStore registryStore = RegistryStore.fromConfiguration();
+    if (registryStore != null) {
+    	long start = System.nanoTime();
+    	Map<String, ClientParameters> savedClients = registryStore.load();
+    	// the configuration file can have changed while the server was down: the clients are limited to the current parameters
+    	AcceptableParameters acceptable = SharedParameters.getAcceptableParameters();
+    	int renegotiated = 0;
+    	for (ClientParameters client : savedClients.values()) {
+    		ClientParameters limited = client.limitedTo(acceptable);
+    		SharedParameters.registerClient(limited);
+    		if (!limited.hasSameLimits(client)) {
+    			registryStore.append(limited);
+    			renegotiated++;
+    		}
+    	}
+    	registryStore.start(SharedParameters::getClients);
+    	System.out.println("Registered clients restored: " + savedClients.size() + " (" + renegotiated + " negotiated again) in "
+    	    + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+	
+    // other nodes of the cluster sharing the registered clients, null in single node mode
+    final ClusterNode clusterNode = ClusterNode.fromConfiguration(registryStore);
+    
+    // the configuration file is reloaded when it changes
+    final ParametersReloader parametersReloader = ParametersReloader.fromConfiguration(configurationFile, conversionEngine, registryStore);
+    if (parametersReloader != null) {
+    	parametersReloader.start();
+    }
+	
+    // conversion workers
+    final ConversionExecutor conversionExecutor = ConversionExecutor.fromConfiguration();
+    System.out.println("Conversion workers: " + conversionExecutor.getWorkers() + ", queue: " + conversionExecutor.getQueueCapacity());
+    // cache of the converted images
+    final ConversionCache conversionCache = ConversionCache.fromConfiguration();
+	
+    // metrics of the services, exported by a local HTTP endpoint
+    ServerMetrics.configure(conversionExecutor, conversionCache);
+    final MetricsInterceptor metricsInterceptor = new MetricsInterceptor();
+    final MetricsServer metricsServer = MetricsServer.fromConfiguration();
+    if (metricsServer != null) {
+    	metricsServer.start();
+    	System.out.println("Metrics on http://localhost:" + metricsServer.getPort() + "/metrics");
+    }
+	
+    // transport of the gRPC services: event loops, executor, flow control and connection limits
+    final ServerTransport serverTransport = ServerTransport.fromConfiguration();
+    int port = ServerConfiguration.getInt("server.port", 50051);
+    NettyServerBuilder serverBuilder = serverTransport.builder(port)
+        .addService(ServerInterceptors.intercept(new Converter(conversionExecutor, conversionCache, conversionEngine), metricsInterceptor))
+        .addService(ServerInterceptors.intercept(new Registrator(registryStore, clusterNode), metricsInterceptor));
+    final Server server = serverBuilder.build().start();
+    System.out.println("Listening on port " + port + " (" + serverTransport + ")");
+    // the other nodes call the Cluster service on the peer port, not on the port of the clients
+    Server peerServer = null;
+    if (clusterNode != null) {
+    	String peerHost = ServerConfiguration.getString("cluster.peer.address", "0.0.0.0");
+    	NettyServerBuilder peerBuilder = serverTransport.builder(new InetSocketAddress(peerHost, clusterNode.getPeerPort()))
+    	    .addService(ServerInterceptors.intercept(new ClusterService(clusterNode), metricsInterceptor));
+    	if (clusterNode.getSecret() != null) {
+    		peerBuilder.intercept(ClusterService.authentication(clusterNode.getSecret()));
+    	}
+    	peerServer = peerBuilder.build().start();
+    	System.out.println("Cluster peers on " + peerHost + ":" + clusterNode.getPeerPort() + (clusterNode.getSecret() != null ? " (secret)" : ""));
+    	clusterNode.start();
+    	System.out.println("Cluster node " + clusterNode.getSelf() + " of " + clusterNode.getNodes());
+    }
+    final Server clusterPeerServer = peerServer;
     Runtime.getRuntime().addShutdownHook(new Thread() {
       @Override
       public void run() {
+        if (parametersReloader != null) {
+          parametersReloader.close();
+        }
+        if (clusterNode != null) {
+          clusterNode.close();
+          clusterPeerServer.shutdownNow();
+        }
         server.shutdown();
         try {
           if (!server.awaitTermination(30, TimeUnit.SECONDS)) {
@@ -47,6 +130,18 @@ public final class ConversionServer {
         } catch (InterruptedException ex) {
           server.shutdownNow();
         }
+        serverTransport.shutdown();
+        conversionExecutor.shutdown();
+        if (metricsServer != null) {
+          metricsServer.stop();
+        }
+        if (registryStore != null) {
+          registryStore.close();
+        }
+        if (conversionCache != null) {
+          System.out.println("Conversion cache " + conversionCache);
+        }
+        System.out.println("Buffer pool " + BufferPool.summary());
       }
     });
     server.awaitTermination();
@@ -2,58 +2,155 @@ import conversion.*;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.stub.StreamObserver;
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import io.grpc.stub.ServerCallStreamObserver;
 import java.io.IOException;
-import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.imageio.ImageIO;
 import com.google.protobuf.ByteString;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Transparency;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 
 public final class Converter extends ConverterGrpc.ConverterImplBase {
 
 	private static final Logger logger = Logger.getLogger(Converter.class.getName());
 	
+	private final ConversionExecutor conversionExecutor;	// workers where the conversions are executed
+	private final ConversionCache conversionCache;			// converted images, null if the cache is disabled
+	private final ConversionEngine conversionEngine;		// codec used to decode and encode the images
+	private final AlphaFlattener alphaFlattener;			// fills the transparent pixels for the types without alpha
+	private final ImageFitter imageFitter;					// downscales the images over the output size, null if disabled
+	private final AdmissionController admissionController;	// limits of the conversions of each client
+	private final int minReplyChunkSize;					// size limits of the chunks of the converted image
+	private final int maxReplyChunkSize;
+	private final int maxBatchImages;						// images of a batch in progress at the same time
+	private final long bandedPixels;						// images with more pixels are converted in bands, 0 = never
+	private final int bandPixels;							// pixels of each band of these images
+	private final boolean passthrough;						// images already of the target type and size are sent back as they are
+	private final long maxInputPixels;						// width * height read from the header, 0 = no limit
+	
+	public Converter(ConversionExecutor conversionExecutor, ConversionCache conversionCache, ConversionEngine conversionEngine) {
+		this.conversionExecutor = conversionExecutor;
+		this.conversionCache = conversionCache;
+		this.conversionEngine = conversionEngine;
+		this.alphaFlattener = AlphaFlattener.fromConfiguration();
+		this.imageFitter = ImageFitter.fromConfiguration(conversionEngine);
+		this.admissionController = AdmissionController.fromConfiguration();
+		this.minReplyChunkSize = ServerConfiguration.getInt("reply.chunk.min", 32 * 1024);
+		this.maxReplyChunkSize = Math.max(minReplyChunkSize, ServerConfiguration.getInt("reply.chunk.max", 256 * 1024));
+		this.maxBatchImages = ServerConfiguration.getInt("batch.images.max", 16);
+		this.bandedPixels = ServerConfiguration.getInt("banded.pixels", 32 * 1024 * 1024);
+		this.bandPixels = ServerConfiguration.getInt("banded.band.pixels", 8 * 1024 * 1024);
+		this.passthrough = ServerConfiguration.getBoolean("passthrough.enabled", true);
+		this.maxInputPixels = ServerConfiguration.getInt("input.pixels.max", 0);
+	}
+	
 	@Override
-	public synchronized StreamObserver<ConversionRequest> fileConvert(final StreamObserver<ConversionReply> responseObserver) {
+	public StreamObserver<ConversionRequest> fileConvert(final StreamObserver<ConversionReply> responseObserver) {
 			    
-	    final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	    // the received chunks are concatenated without copying them, the file is never copied into a single array
+	    final AtomicReference<ByteString> fileReceived = new AtomicReference<>(ByteString.EMPTY);
+	    final AtomicLong maxInputBytes = new AtomicLong(0);	// negotiated input size limit in bytes, 0 = no size limit
+	    final AtomicLong declaredBytes = new AtomicLong(0);	// size of the file declared by the client, 0 = not declared
+	    // registration of the client and image types, read once when the metadata is received
+	    final AtomicReference<ClientParameters> client = new AtomicReference<>();
+	    final AtomicReference<ImageType> imageTypeOrigin = new AtomicReference<>();
+	    final AtomicReference<ImageType> imageTypeTarget = new AtomicReference<>();
 	    final AtomicBoolean completed = new AtomicBoolean(false);
 	    final StringBuffer typeOrigin = new StringBuffer("");
 	    final StringBuffer typeTarget = new StringBuffer("");
 	    final StringBuffer clientId = new StringBuffer("");
 	    final StringBuffer errorMessage = new StringBuffer("");
 	    final AtomicBoolean success = new AtomicBoolean(true);
+	    final AtomicLong receiveStart = new AtomicLong(0);		// time of the first message, for the metrics
+	    final AtomicReference<String> admittedClientId = new AtomicReference<>();	// the conversion counts in the limits of this client
+	    final AtomicBoolean headerChecked = new AtomicBoolean(false);	// real type and dimensions of the image checked
+	    final AtomicBoolean metadataChecked = new AtomicBoolean(false);	// the metadata has been received and accepted
+	    // the flow control handlers must be set before returning the request observer
+	    final ChunkedReplySender replySender = new ChunkedReplySender(
+	    		(ServerCallStreamObserver<ConversionReply>) responseObserver, minReplyChunkSize, maxReplyChunkSize);
 
 	    return new StreamObserver<ConversionRequest>() {
 	    	  @Override
 	    	  public void onNext(ConversionRequest dataChunk) {
 	    		  
+	    		  receiveStart.compareAndSet(0, System.nanoTime());
 	    		  if(success.get()) {
 	    			  try {
 	    				  switch(dataChunk.getRequestOneofCase().getNumber()) {
 	    				  	  //meta data information is received
 			            	  case ConversionRequest.META_FIELD_NUMBER : {
+			            		  // a second metadata would change the clientId of a call already admitted
+			            		  if (metadataChecked.get() || client.get() != null) {
+			            			  rejectRequest("metadata_repeated", "Metadata already received!", Status.INVALID_ARGUMENT);
+			            			  return;
+			            		  }
 			            		  clientId.append(dataChunk.getMeta().getClientId());
 			            		  typeOrigin.append(dataChunk.getMeta().getFileTypeOrigin());
 			            		  typeTarget.append(dataChunk.getMeta().getFileTypeTarget());
+			            		  ClientParameters clientParameters = SharedParameters.getClient(clientId.toString());
+			            		  client.set(clientParameters);
+			            		  imageTypeOrigin.set(ImageType.parse(typeOrigin.toString()));
+			            		  imageTypeTarget.set(ImageType.parse(typeTarget.toString()));
+			            		  declaredBytes.set(dataChunk.getMeta().getFileSize());
+			            		  // the request is checked as soon as the metadata is received, a refused request is
+			            		  // answered at once and the stream is closed, so the file is never sent or buffered
+			            		  if (clientParameters == null) {
+			            			  rejectRequest("client_not_registered", "Client not registered! You are not allowed to the Conversion Service.", Status.PERMISSION_DENIED);
+			            			  return;
+			            		  }
+			            		  if (!clientParameters.acceptsInput(imageTypeOrigin.get())) {
+			            			  rejectRequest("input_type", "Input image type not supported!", Status.INVALID_ARGUMENT);
+			            			  return;
+			            		  }
+			            		  if (!clientParameters.acceptsOutput(imageTypeTarget.get())) {
+			            			  rejectRequest("output_type", "Output image type not supported!", Status.INVALID_ARGUMENT);
+			            			  return;
+			            		  }
+			            		  maxInputBytes.set(clientParameters.getMaxInputBytes(imageTypeOrigin.get()));
+			            		  if (maxInputBytes.get() > 0 && declaredBytes.get() > maxInputBytes.get()) {
+			            			  rejectRequest("input_size", "Input image size not acceptable!", Status.RESOURCE_EXHAUSTED);
+			            			  return;
+			            		  }
+			            		  // admission of the client, decided before the image is received
+			            		  long wait = admissionController.admit(clientParameters.getClientId());
+			            		  if (wait > 0) {
+			            			  rejectAdmission(wait);
+			            			  return;
+			            		  }
+			            		  admittedClientId.set(clientParameters.getClientId());
+			            		  metadataChecked.set(true);
+			            		  break;
 			            	  }
 			            	  //file chunk is received
 			            	  case ConversionRequest.FILE_FIELD_NUMBER : {
-				                     baos.write(dataChunk.getFile().toByteArray());
-			            	  }	
+			            		  // without accepted metadata there is no size limit to check, the file is never buffered
+			            		  if (!metadataChecked.get()) {
+			            			  rejectRequest("no_metadata", "Metadata not received! Send the metadata before the file.", Status.INVALID_ARGUMENT);
+			            			  return;
+			            		  }
+			            		  ByteString file = fileReceived.get().concat(dataChunk.getFile());
+			            		  fileReceived.set(file);
+			            		  // the size is checked while receiving, the upload is stopped as soon as it passes the limit
+			            		  if(maxInputBytes.get() > 0 && file.size() > maxInputBytes.get()) {
+			            			  rejectRequest("input_size", "Input image size not acceptable!", Status.RESOURCE_EXHAUSTED);
+			            		  } else if(declaredBytes.get() > 0 && file.size() > declaredBytes.get()) {
+			            			  rejectRequest("input_size", "Input image bigger than the declared size!", Status.INVALID_ARGUMENT);
+			            		  } else if(!headerChecked.get()) {
+			            			  // the header is read on the first chunks, until it is complete
+			            			  ImageHeader header = ImageHeader.read(file);
+			            			  if (!header.needsMoreBytes()) {
+			            				  checkHeader(header);
+			            			  }
+			            		  }
+			            		  break;
+			            	  }
 	            		  }
-	            	  } catch (IOException e) {
-	                      logger.log(Level.INFO,"error on write to byte array stream!", e);
-	                      onError(e);
 	                  } catch(Exception e) {
 	                	  logger.log(Level.INFO,"error on receiving the file!", e);
 	                      onError(e);
@@ -79,175 +176,292 @@ public final class Converter extends ConverterGrpc.ConverterImplBase {
             		    logger.log(Level.INFO, "Unexpected error in receiving the file!", t);
             		}
                   success.set(false);
+                  releaseAdmission();
+              }
+
+              private boolean checkHeader(ImageHeader header) {
+            	  // the real type and the dimensions are checked before the rest of the image is received
+            	  headerChecked.set(true);
+            	  if (client.get() == null) {
+            		  return true;	// call without metadata, refused when it is completed
+            	  }
+            	  ImageType typeReal = checkOrigin(header, imageTypeOrigin.get(), client.get());
+            	  if (typeReal == null) {
+            		  rejectRequest("input_type", "Input image is not of the declared type!", Status.INVALID_ARGUMENT);
+            		  return false;
+            	  }
+            	  if (typeReal != imageTypeOrigin.get()) {
+            		  imageTypeOrigin.set(typeReal);
+            		  maxInputBytes.set(client.get().getMaxInputBytes(typeReal));
+            		  if (maxInputBytes.get() > 0 && Math.max(declaredBytes.get(), fileReceived.get().size()) > maxInputBytes.get()) {
+            			  rejectRequest("input_size", "Input image size not acceptable!", Status.RESOURCE_EXHAUSTED);
+            			  return false;
+            		  }
+            	  }
+            	  if (!acceptsPixels(header)) {
+            		  rejectRequest("input_pixels", "Input image dimensions not acceptable!", Status.RESOURCE_EXHAUSTED);
+            		  return false;
+            	  }
+            	  return true;
+              }
+
+              private void closeWithError(Status status) {
+            	  try {
+            		  responseObserver.onError(status.asRuntimeException());
+            	  } catch (IllegalStateException e) {
+            		  logger.log(Level.FINE, "Call already closed");
+            	  }
+              }
+
+              private void rejectAdmission(long wait) {
+            	  logger.log(Level.FINE, "Conversion not admitted, try again in " + wait + " ms");
+            	  ServerMetrics.rejection("client_limit");
+            	  success.set(false);
+            	  completed.set(true);
+            	  responseObserver.onError(AdmissionController.rejection(wait));
+              }
+
+              private void releaseAdmission() {
+            	  String admittedId = admittedClientId.getAndSet(null);
+            	  if (admittedId != null) {
+            		  admissionController.release(admittedId);
+            	  }
+              }
+
+              private void rejectRequest(String reason, String error, Status status) {
+            	  logger.log(Level.FINE, error);
+            	  ServerMetrics.rejection(reason);
+            	  success.set(false);
+            	  completed.set(true);	// the reply is sent now, nothing has to be done when the stream is completed
+            	  fileReceived.set(ByteString.EMPTY);
+            	  releaseAdmission();
+            	  responseObserver.onNext(ConversionReply.newBuilder()
+            			  .setMeta(MetadataReply.newBuilder()
+            			  .setSuccess(false)
+            			  .setError(error))
+            			  .build());
+            	  // the error closes the stream, the next messages of the client are dropped
+            	  responseObserver.onError(status.withDescription(error).asRuntimeException());
               }
 
               @Override
               public void onCompleted() {
-                  logger.log(Level.INFO, "File has been received!");
-                  completed.compareAndSet(false, true);
+                  if (!completed.compareAndSet(false, true)) {
+                	  return;	// the request has already been answered while receiving the file
+                  }
+                  logger.log(Level.FINE, "File has been received!");
+                  if (!headerChecked.get() && !checkHeader(ImageHeader.read(fileReceived.get()))) {
+                	  return;	// image smaller than its header
+                  }
+                  long received = System.nanoTime();
+                  ServerMetrics.recordPhase(ServerMetrics.Phase.RECEIVE, received - receiveStart.get());
+                  ServerMetrics.addBytesIn(fileReceived.get().size());
+                  // the conversion is moved from the transport thread to the conversion workers
+                  try {
+                	  // the conversions waiting for a worker are taken in turn from each client
+                	  conversionExecutor.execute(clientId.toString(), admissionController.getWeight(clientId.toString()), () -> {
+                		  ServerMetrics.recordPhase(ServerMetrics.Phase.QUEUE, System.nanoTime() - received);
+                		  try {
+                			  convertAndReply();
+                		  } catch (RuntimeException | Error e) {
+                			  // the call is closed on every path, the client never waits for a reply that will not come
+                			  logger.log(Level.INFO, "Conversion has failed!", e);
+                			  ServerMetrics.rejection("conversion_error");
+                			  closeWithError(Status.INTERNAL.withDescription("Conversion failed!"));
+                			  if (e instanceof Error) {
+                				  throw (Error) e;
+                			  }
+                		  } finally {
+                			  releaseAdmission();
+                		  }
+                	  });
+                  } catch (RejectedExecutionException e) {
+                	  releaseAdmission();
+                	  logger.log(Level.FINE, "Conversion queue is full!");
+                	  ServerMetrics.rejection("busy");
+                	  responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                			  .withDescription("Server is busy, too many conversions in progress! Try again later.")
+                			  .asRuntimeException());
+                  }
+              }
+              
+              private void convertAndReply() {
                   
-                  // check if the client is registered
-                  //String clientId = ConversionRequest.getClientId();
-                  System.out.println("ClientId: " + clientId.toString());
-                  System.out.println("Conversion: " + typeOrigin.toString().toUpperCase() + " ---> " + typeTarget.toString().toUpperCase());
-                  if (!SharedParameters.getRegisteredClients(clientId.toString())) {  				// 1ST CHECK ***********************************************************************************************************
-    	        	  logger.log(Level.INFO, "Client not registered!");
-    	              success.set(false);
-    	              errorMessage.append("Client not registered! You are not allowed to the Conversion Service.");
-    				  responseObserver.onNext(ConversionReply.newBuilder()
-    			              .setMeta(MetadataReply.newBuilder()
-    			              .setSuccess(false)
-    			              .setError(errorMessage.toString()))
-    			              .build());
-                  } else {
-                	  // Get negotiated parameters for the client
-                      Map<String, Integer> negotiatedInputParams = SharedParameters.getNegotiatedInputParameters(clientId.toString());
-                      Map<String, Integer> negotiatedOutputParams = SharedParameters.getNegotiatedOutputParameters(clientId.toString());
-                                      
-	                  // check if the input type is available
-	                  if(!negotiatedInputParams.containsKey(typeOrigin.toString().toUpperCase())) { 	// 2ND CHECK ***********************************************************************************************************
-	    	        	  logger.log(Level.INFO, "Input image type not supported!");	
-	    	              success.set(false);
-	    	              errorMessage.append("Input image type not supported!");
-	    				  responseObserver.onNext(ConversionReply.newBuilder()
-	    			              .setMeta(MetadataReply.newBuilder()
-	    			              .setSuccess(false)
-	    			              .setError(errorMessage.toString()))
-	    			              .build());
-	                  }
-	                  // check if the output type is available
-	                  if(!negotiatedOutputParams.containsKey(typeTarget.toString().toUpperCase())) { 	// 3RD CHECK ***********************************************************************************************************
-	    	        	  logger.log(Level.INFO, "Output image type not supported!");
+                  // the client, the image types and the input size have been checked while receiving the metadata and the file
+                  ClientParameters clientParameters = client.get();
+                  
+                  //conversion
+    	          ByteString imageToSend = ByteString.EMPTY;
+				  try {
+					  ByteString bytes_input = fileReceived.get();
+					  fileReceived.set(ByteString.EMPTY);
+					  
+                      long maxSizeBytesOutput = clientParameters.getMaxOutputBytes(imageTypeTarget.get());
+				      imageToSend = convert(bytes_input, imageTypeOrigin.get(), imageTypeTarget.get(), maxSizeBytesOutput);
+				      
+				      int bytes_output = imageToSend.size();
+                      
+                      // check the size, if it is equal to 0, there's no size limit
+				      if(maxSizeBytesOutput > 0 && bytes_output > maxSizeBytesOutput) {
+	    	        	  logger.log(Level.FINE, "Output image size not acceptable!");
+	    	        	  ServerMetrics.rejection("output_size");
 	    	              success.set(false);
-	    	              errorMessage.append("Output image type not supported!");
-	    				  responseObserver.onNext(ConversionReply.newBuilder()
-	    			              .setMeta(MetadataReply.newBuilder()
-	    			              .setSuccess(false)
-	    			              .setError(errorMessage.toString()))
-	    			              .build());
-	                  }
-	                  // REMOVE THIS CHECK, we don't need it since we have configuration file types
-	                  // check if media types are supported								// 4TH CHECK ***********************************************************************************************************
-	                  /*if(!typeOrigin.toString().equalsIgnoreCase("png") && !typeOrigin.toString().equalsIgnoreCase("jpg")
-	    	        		  && !typeOrigin.toString().equalsIgnoreCase("gif") && !typeTarget.toString().equalsIgnoreCase("png") && !typeTarget.toString().equalsIgnoreCase("jpg") 
-	    	        		  && !typeTarget.toString().equalsIgnoreCase("gif") 
-	    	        		  ) {
-	    	        	  logger.log(Level.INFO, "media type not supported!");
-	    	        	  success.set(false);
-	    	          }*/
-	                  
-	                  //conversion
-	    	          ByteArrayOutputStream baosImageToSend = new ByteArrayOutputStream();
-	    	          if(success.get()) {
-	    				  try {
-	    					  byte[] bytes_input = baos.toByteArray();
-	    					  
-	                          Integer maxInputSize = negotiatedInputParams.get(typeOrigin.toString().toUpperCase());
-
-	                          // check the size, if it is equal to 0, there's no size limit             
-	    					  if(maxInputSize > 0) { 									// 5TH CHECK ***********************************************************************************************************
-		                          long maxSizeBytesInput = maxInputSize * 1024;
-		                          System.out.println("Image size limit: " + maxSizeBytesInput);
-		                          System.out.println("Image size: " + bytes_input.length);
-	    						  if(bytes_input.length > maxSizeBytesInput) {			// 6TH CHECK ***********************************************************************************************************
-	    	        	        	  logger.log(Level.INFO, "Input image size not acceptable!");
-	    	        	              success.set(false);
-	    	        	              errorMessage.append("Input image size not acceptable!");
-	    		    				  responseObserver.onNext(ConversionReply.newBuilder()
-	    		    			              .setMeta(MetadataReply.newBuilder()
-	    		    			              .setSuccess(false)
-	    		    			              .setError(errorMessage.toString()))
-	    		    			              .build());
-	    						  }
-	    					  }
-	    						  
-	    				      if(success.get()) {
-		    				      ByteArrayInputStream bais = new ByteArrayInputStream(bytes_input);
-		    				      BufferedImage imageReceived = ImageIO.read(bais);
-		    					  if(imageReceived.getColorModel().getTransparency() != Transparency.OPAQUE) {
-		    						  imageReceived = fillTransparentPixels(imageReceived, Color.WHITE);
-		    					  }
-		    				      ImageIO.write(imageReceived, typeTarget.toString(), baosImageToSend); 
-	    				      }
-	    				      
-	    				      byte[] bytes_output = baosImageToSend.toByteArray();
-	                          Integer maxOutputSize = negotiatedOutputParams.get(typeTarget.toString().toUpperCase());
-	                          
-	                          // check the size, if it is equal to 0, there's no size limit
-	    				      if(maxOutputSize > 0) {									// 7TH CHECK ***********************************************************************************************************
-		                          long maxSizeBytesOutput = maxOutputSize * 1024;
-		                          System.out.println("Image size limit: " + maxSizeBytesOutput);
-		                          System.out.println("Image size: " + bytes_output.length);
-	    						  if(bytes_output.length > maxSizeBytesOutput) { 		// 8TH CHECK ***********************************************************************************************************
-	    	        	        	  logger.log(Level.INFO, "Output image size not acceptable!");
-	    	        	              success.set(false);
-	    	        	              errorMessage.append("Output image size not acceptable!");
-	    		    				  responseObserver.onNext(ConversionReply.newBuilder()
-	    		    			              .setMeta(MetadataReply.newBuilder()
-	    		    			              .setSuccess(false)
-	    		    			              .setError(errorMessage.toString()))
-	    		    			              .build());
-	    						  }
-	    				      }
-	    				  } catch (IOException e) {
-	    					success.set(false);
-	    					e.printStackTrace();
-	    				  }
-	    	          }
-	    			  //send the image back
-	
-	    			  //Case 1: success
-	    			  if(success.get()) {
-	    				  logger.log(Level.INFO, "conversion has been successful!");
-	    				  responseObserver.onNext(ConversionReply.newBuilder()
-	    			              .setMeta(MetadataReply.newBuilder().setSuccess(true))
-	    			              .build());
-	    				
-	    				  BufferedInputStream bisImageToSend = new BufferedInputStream(new ByteArrayInputStream(baosImageToSend.toByteArray()));
-	
-	    	              int bufferSize = 1 * 1024; // 1KB
-	    	              byte[] buffer = new byte[bufferSize];
-	    	              int length;
-	    	              try {
-	    					  while ((length = bisImageToSend.read(buffer, 0, bufferSize)) != -1) {
-	    					      responseObserver.onNext(ConversionReply.newBuilder()
-	    					              .setFile(ByteString.copyFrom(buffer, 0, length))
-	    					              .build());
-	    					  }
-	    				  } catch (IOException e) {
-	    					  e.printStackTrace();
-	    					  responseObserver.onError(e);
-	    				  }
-	    	              try {
-							  bisImageToSend.close();
-						  } catch (IOException e) {
-							  e.printStackTrace();
-							  responseObserver.onError(e);
-						  } 
-	    			  } else { //Case 2: error
-	    				  logger.log(Level.INFO, "conversion has failed!");
-	    				  responseObserver.onNext(ConversionReply.newBuilder()
-	    			              .setMeta(MetadataReply.newBuilder()
-	    			              .setSuccess(false)
-	    			              .setError(errorMessage.toString()))
-	    			              .build());
-	    			  }
-                }
-    			responseObserver.onCompleted();           
+	    	              errorMessage.append("Output image size not acceptable!");
+				      }
+				  } catch (IOException | RuntimeException e) {
+					// an image that cannot be decoded or encoded, the error is sent to the client
+					logger.log(Level.INFO, "Conversion has failed!", e);
+					success.set(false);
+					ServerMetrics.rejection("conversion_error");
+					errorMessage.append("Conversion failed!");
+				  }
+				  //send the image back
+
+				  //Case 1: success
+				  if(success.get()) {
+					  logger.log(Level.FINE, "conversion has been successful!");
+					  ServerMetrics.conversion(clientId.toString(), imageTypeOrigin.get(), imageTypeTarget.get());
+					  responseObserver.onNext(ConversionReply.newBuilder()
+				              .setMeta(MetadataReply.newBuilder().setSuccess(true))
+				              .build());
+					
+					  // the chunks are sent while the client is ready, the sender completes the call after the last one
+					  replySender.send(imageToSend);
+				  } else { //Case 2: error
+					  logger.log(Level.FINE, "conversion has failed!");
+					  responseObserver.onNext(ConversionReply.newBuilder()
+				              .setMeta(MetadataReply.newBuilder()
+				              .setSuccess(false)
+				              .setError(errorMessage.toString()))
+				              .build());
+					  responseObserver.onCompleted();
+				  }
               }
           };     
 	  }; 
 	
-	public static BufferedImage fillTransparentPixels( BufferedImage image, Color fillColor ) {
-		int w = image.getWidth();
-		int h = image.getHeight();
-		BufferedImage image2 = new BufferedImage(w, h, 
-		BufferedImage.TYPE_INT_RGB);
-		Graphics2D g = image2.createGraphics();
-		g.setColor(fillColor);
-		g.fillRect(0,0,w,h);
-		g.drawRenderedImage(image, null);
-		g.dispose();
-		return image2;
+	@Override
+	public StreamObserver<BatchRequest> batchConvert(final StreamObserver<BatchReply> responseObserver) {
+		// several images over one stream, see BatchConversion
+		BatchReplySender replySender = new BatchReplySender(
+				(ServerCallStreamObserver<BatchReply>) responseObserver, minReplyChunkSize, maxReplyChunkSize);
+		return new BatchConversion(this, conversionExecutor, admissionController, replySender, maxBatchImages);
+	}
+	
+	ImageType checkOrigin(ImageHeader header, ImageType typeOrigin, ClientParameters clientParameters) {
+		// real type of the image: the declared one if it is not recognized, null if the client cannot send the real one
+		ImageType typeReal = header.getType();
+		if (typeReal == null || typeReal == typeOrigin) {
+			return typeOrigin;
+		}
+		logger.log(Level.FINE, "Image declared " + typeOrigin + " is " + typeReal);
+		return clientParameters.acceptsInput(typeReal) ? typeReal : null;
+	}
+
+	boolean acceptsPixels(ImageHeader header) {
+		return maxInputPixels == 0 || header.getPixels() <= maxInputPixels;
+	}	// return false if the dimensions of the header are over the limit
+
+	ByteString convert(ByteString imageInput, ImageType typeOrigin, ImageType typeTarget, long maxOutputBytes) throws IOException {
+		// decode, flatten and encode the image, downscaled if it is over maxOutputBytes (0 = no size limit)
+		// an image already of the target type that fits is sent back as it is, without decoding it (and without losing quality)
+		ImageHeader header = ImageHeader.read(imageInput);
+		if(passthrough && typeOrigin == typeTarget && header.getType() == typeTarget
+				&& (maxOutputBytes == 0 || imageInput.size() <= maxOutputBytes)) {
+			ServerMetrics.passthrough();
+			return imageInput;
+		}
+		// the same image converted to the same type is read from the cache, without decoding it
+		String cacheKey = conversionCache == null ? null : conversionCache.key(imageInput, typeOrigin, typeTarget);
+		ByteString imageCached = cacheKey == null ? null : conversionCache.get(cacheKey);
+		if(imageCached != null && (imageFitter == null || maxOutputBytes == 0 || imageCached.size() <= maxOutputBytes)) {
+			return imageCached;
+		}
+		ByteString imageToSend;
+		if(bandedPixels > 0) {
+			// only the header is read to choose the mode, a big image is never decoded at once
+			Dimension size = header.getType() == typeOrigin && header.hasSize()
+					? new Dimension(header.getWidth(), header.getHeight())
+					: conversionEngine.readSize(imageInput.newInput(), typeOrigin.name());
+			if(size != null && (long) size.width * size.height >= bandedPixels) {
+				return convertBanded(imageInput, typeOrigin, typeTarget, maxOutputBytes, imageCached, cacheKey);
+			}
+		}
+		long start = System.nanoTime();
+		BufferedImage imageReceived = conversionEngine.read(imageInput.newInput(), typeOrigin.name());
+		start = recordPhase(ServerMetrics.Phase.DECODE, start);
+		// the transparent pixels are filled only if the target type has no alpha
+		boolean flattened = AlphaFlattener.isTransparent(imageReceived) && !AlphaFlattener.supportsAlpha(typeTarget.name());
+		if(flattened) {
+			imageReceived = alphaFlattener.flatten(imageReceived, Color.WHITE);
+			start = recordPhase(ServerMetrics.Phase.FLATTEN, start);
+		}
+		try {
+			if(imageCached != null) {
+				imageToSend = imageCached;	// too big for this client, only the downscale is needed
+			} else {
+				// the encoder writes directly into chunks that are sent without other copies
+				ChunkedOutput imageEncoded = new ChunkedOutput(minReplyChunkSize);
+				conversionEngine.write(imageReceived, typeTarget.name(), imageEncoded);
+				imageToSend = imageEncoded.toByteString();
+				start = recordPhase(ServerMetrics.Phase.ENCODE, start);
+				if(cacheKey != null) {
+					conversionCache.put(cacheKey, imageToSend);
+				}
+			}
+			// the image is too big for the client: it is downscaled from the decoded image until it fits
+			if(imageFitter != null && maxOutputBytes > 0 && imageToSend.size() > maxOutputBytes) {
+				ByteString imageFitted = imageFitter.fit(imageReceived, typeTarget.name(), maxOutputBytes, imageToSend.size());
+				if(imageFitted != null) {
+					imageToSend = imageFitted;
+				}
+				recordPhase(ServerMetrics.Phase.FIT, start);
+			}
+		} finally {
+			if(flattened) {
+				alphaFlattener.release(imageReceived);
+			}
+		}
+		return imageToSend;
+	}
+	
+	private ByteString convertBanded(ByteString imageInput, ImageType typeOrigin, ImageType typeTarget, long maxOutputBytes,
+			ByteString imageCached, String cacheKey) throws IOException {
+		// the image is decoded and encoded a band of rows at a time, so the memory used does not grow with its size
+		// it is downscaled by subsampling its rows and columns while decoding them if it is over maxOutputBytes
+		AlphaFlattener flattener = AlphaFlattener.supportsAlpha(typeTarget.name()) ? null : alphaFlattener;
+		long start = System.nanoTime();
+		ByteString imageToSend = imageCached;
+		if(imageToSend == null) {
+			imageToSend = writeBanded(imageInput, typeOrigin, typeTarget, 1, flattener);
+			start = recordPhase(ServerMetrics.Phase.BANDED, start);
+			if(cacheKey != null) {
+				conversionCache.put(cacheKey, imageToSend);
+			}
+		}
+		if(imageFitter != null && maxOutputBytes > 0 && imageToSend.size() > maxOutputBytes) {
+			int subsampling = 1;
+			for(int attempt = 0; attempt < imageFitter.getMaxAttempts() && imageToSend.size() > maxOutputBytes; attempt++) {
+				double scale = imageFitter.nextScale(1.0 / subsampling, maxOutputBytes, imageToSend.size());
+				subsampling = Math.max(subsampling + 1, (int) Math.ceil(1 / scale));
+				imageToSend = writeBanded(imageInput, typeOrigin, typeTarget, subsampling, flattener);
+			}
+			recordPhase(ServerMetrics.Phase.FIT, start);
+		}
+		return imageToSend;
 	}
+
+	private ByteString writeBanded(ByteString imageInput, ImageType typeOrigin, ImageType typeTarget, int subsampling,
+			AlphaFlattener flattener) throws IOException {
+		ChunkedOutput imageEncoded = new ChunkedOutput(minReplyChunkSize);
+		conversionEngine.writeBanded(imageInput.newInput(), typeOrigin.name(), typeTarget.name(), imageEncoded,
+				bandPixels, subsampling, flattener);
+		return imageEncoded.toByteString();
+	}
+
+	private static long recordPhase(ServerMetrics.Phase phase, long start) {
+		long end = System.nanoTime();
+		ServerMetrics.recordPhase(phase, end - start);
+		return end;
+	}	// record the phase started at start, return the end that is the start of the next phase
 };
\ No newline at end of file
@@ -0,0 +1,247 @@
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public final class FairTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+	/*
+	Bounded queue of the conversion workers where the tasks of different clients are taken in weighted round-robin:
+	each client with waiting tasks has its own FIFO queue, and in each round a client can give up to "weight" tasks
+	to the workers before the next client. A client sending many conversions only makes its own queue longer,
+	the other clients still get a worker at each round.
+	The tasks that are not ClientTask are queued under the empty clientId with weight 1.
+	*/
+	private final int capacity;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Map<String, ArrayDeque<Runnable>> queues = new HashMap<>();	// clients with waiting tasks
+	private final ArrayDeque<String> round = new ArrayDeque<>();				// clients waiting for their turn
+	private String current;			// client whose turn it is, null at the start of the next turn
+	private int credit;				// tasks the current client can still give in this turn
+	private int count;
+
+	public static final class ClientTask implements Runnable {
+		private final String clientId;
+		private final int weight;
+		private final Runnable task;
+
+		public ClientTask(String clientId, int weight, Runnable task) {
+			this.clientId = clientId;
+			this.weight = Math.max(1, weight);
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			task.run();
+		}
+	}
+
+	public FairTaskQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	@Override
+	public boolean offer(Runnable task) {
+		lock.lock();
+		try {
+			if (count == capacity) {
+				return false;
+			}
+			String clientId = task instanceof ClientTask ? ((ClientTask) task).clientId : "";
+			ArrayDeque<Runnable> queue = queues.get(clientId);
+			if (queue == null) {
+				queue = new ArrayDeque<>();
+				queues.put(clientId, queue);
+				if (!clientId.equals(current)) {
+					round.add(clientId);
+				}
+			}
+			queue.add(task);
+			count++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+		return offer(task);
+	}	// the conversions are rejected at once when the queue is full, they never wait
+
+	@Override
+	public void put(Runnable task) {
+		if (!offer(task)) {
+			throw new IllegalStateException("Queue full");
+		}
+	}
+
+	@Override
+	public Runnable poll() {
+		lock.lock();
+		try {
+			return count == 0 ? null : dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable take() throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				notEmpty.await();
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Runnable peek() {
+		lock.lock();
+		try {
+			if (count == 0) {
+				return null;
+			}
+			return queues.get(current != null ? current : round.peek()).peek();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		lock.lock();
+		try {
+			return capacity - count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object task) {
+		// used by the pool only when it is shutting down
+		lock.lock();
+		try {
+			for (Map.Entry<String, ArrayDeque<Runnable>> entry : queues.entrySet()) {
+				if (entry.getValue().remove(task)) {
+					count--;
+					if (entry.getValue().isEmpty()) {
+						removeClient(entry.getKey());
+					}
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> collection) {
+		return drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super Runnable> collection, int maxElements) {
+		lock.lock();
+		try {
+			int drained = 0;
+			while (count > 0 && drained < maxElements) {
+				collection.add(dequeue());
+				drained++;
+			}
+			return drained;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public Iterator<Runnable> iterator() {
+		// copy of the waiting tasks, in no particular order
+		lock.lock();
+		try {
+			List<Runnable> tasks = new ArrayList<>(count);
+			for (ArrayDeque<Runnable> queue : queues.values()) {
+				tasks.addAll(queue);
+			}
+			return tasks.iterator();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Runnable dequeue() {
+		// called holding the lock with count > 0
+		if (current == null) {
+			current = round.poll();
+			ArrayDeque<Runnable> queue = queues.get(current);
+			Runnable head = queue.peek();
+			credit = head instanceof ClientTask ? ((ClientTask) head).weight : 1;
+		}
+		ArrayDeque<Runnable> queue = queues.get(current);
+		Runnable task = queue.poll();
+		count--;
+		credit--;
+		if (queue.isEmpty()) {
+			queues.remove(current);
+			current = null;
+		} else if (credit == 0) {
+			round.add(current);		// turn ended, back at the end of the round
+			current = null;
+		}
+		return task;
+	}
+
+	private void removeClient(String clientId) {
+		queues.remove(clientId);
+		if (clientId.equals(current)) {
+			current = null;
+		} else {
+			round.remove(clientId);
+		}
+	}
+}
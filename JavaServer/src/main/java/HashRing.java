@@ -0,0 +1,55 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public final class HashRing {
+	/*
+	Consistent hashing of the clientIds to the nodes of a cluster.
+	Each node is placed on the ring in virtualNodes points, a clientId belongs to the node of the first point
+	after its hash. Adding or removing a node moves only the clients between its points and the previous ones,
+	about 1/N of the clients. All the nodes and the clients must use the same list of nodes and virtualNodes.
+	*/
+	private final List<String> nodes;
+	private final TreeMap<Long, String> ring = new TreeMap<>();
+
+	public HashRing(List<String> nodes, int virtualNodes) {
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	public String owner(String clientId) {
+		// return the node of the client, null if the ring is empty
+		if (ring.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> entry = ring.ceilingEntry(hash(clientId));
+		return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+	}
+
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	private static long hash(String key) {
+		// first 8 bytes of the MD5 of the key: spread uniformly and the same in every process
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = hash << 8 | (digest[i] & 0xFF);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);		// MD5 is available in every JVM
+		}
+	}
+}
@@ -0,0 +1,103 @@
+import com.google.protobuf.ByteString;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class ImageFitter {
+	/*
+	Downscales a converted image that is bigger than the negotiated output size, instead of failing the conversion.
+	The encoded size is taken as proportional to the number of pixels: the scale of each attempt is estimated
+	from the size of the previous encode, minus a safety margin, and the image is encoded again.
+	Every attempt resamples the decoded image (never an already encoded one) with progressive bilinear steps:
+	the image is halved until it is less than twice the target size, then scaled to the target size.
+	The halved images are kept between the attempts, so each one only adds the last step.
+	After maxAttempts encodes the conversion fails as before.
+	*/
+	private final ConversionEngine conversionEngine;
+	private final int maxAttempts;		// maximum number of encodes of the downscaled image
+	private final double margin;		// the estimated scale is multiplied by this value, to fit at the first attempt
+	private final int chunkSize;		// chunks of the encoded image, the same as the first reply chunk of the Converter
+
+	public ImageFitter(ConversionEngine conversionEngine, int maxAttempts, double margin, int chunkSize) {
+		this.conversionEngine = conversionEngine;
+		this.maxAttempts = maxAttempts;
+		this.margin = margin;
+		this.chunkSize = chunkSize;
+	}
+
+	public static ImageFitter fromConfiguration(ConversionEngine conversionEngine) {
+		// read the fit parameters from the server configuration, returns null if the images are never downscaled
+		if (!ServerConfiguration.getBoolean("fit.enabled", false)) {
+			return null;
+		}
+		return new ImageFitter(conversionEngine,
+				ServerConfiguration.getInt("fit.attempts", 4),
+				ServerConfiguration.getFloat("fit.margin", 0.9f),
+				ServerConfiguration.getInt("reply.chunk.min", 32 * 1024));
+	}
+
+	public ByteString fit(BufferedImage image, String imgType, long maxBytes, long encodedBytes) throws IOException {
+		// return the image downscaled and encoded in at most maxBytes, or null if it does not fit after all the attempts
+		List<BufferedImage> halves = new ArrayList<>();
+		halves.add(image);
+		double scale = 1;
+		for (int attempt = 0; attempt < maxAttempts; attempt++) {
+			scale = nextScale(scale, maxBytes, encodedBytes);
+			int w = Math.max(1, (int) (image.getWidth() * scale));
+			int h = Math.max(1, (int) (image.getHeight() * scale));
+
+			ChunkedOutput imageEncoded = new ChunkedOutput(chunkSize);
+			conversionEngine.write(resample(halves, w, h), imgType, imageEncoded);
+			ByteString imageFitted = imageEncoded.toByteString();
+			encodedBytes = imageFitted.size();
+			if (encodedBytes <= maxBytes) {
+				return imageFitted;
+			}
+			if (w == 1 && h == 1) {
+				break;
+			}
+		}
+		return null;
+	}
+
+	public double nextScale(double scale, long maxBytes, long encodedBytes) {
+		// scale of the next attempt from the size of the image encoded at scale, always smaller than the previous one
+		double next = scale * Math.sqrt((double) maxBytes / encodedBytes) * margin;
+		return Math.min(next, scale * margin);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	private static BufferedImage resample(List<BufferedImage> halves, int w, int h) {
+		// start from the smallest halved image not smaller than the target, halving it again if needed
+		int i = 0;
+		while (true) {
+			BufferedImage source = halves.get(i);
+			int halfW = source.getWidth() / 2;
+			int halfH = source.getHeight() / 2;
+			if (halfW < w || halfH < h) {
+				return scale(source, w, h);
+			}
+			if (i + 1 == halves.size()) {
+				halves.add(scale(source, halfW, halfH));
+			}
+			i++;
+		}
+	}
+
+	private static BufferedImage scale(BufferedImage source, int w, int h) {
+		boolean alpha = source.getColorModel().getTransparency() != Transparency.OPAQUE;
+		BufferedImage scaled = new BufferedImage(w, h, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = scaled.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+		g.drawImage(source, 0, 0, w, h, null);
+		g.dispose();
+		return scaled;
+	}
+}
@@ -0,0 +1,131 @@
+import com.google.protobuf.ByteString;
+
+public final class ImageHeader {
+	/*
+	Real type and dimensions of an image read from its first bytes, without decoding it (format sniffing).
+	The type is recognized from the magic number (PNG, JPG, GIF, BMP, TIFF; WBMP has none), the width and height
+	from the fixed header (PNG, GIF, BMP) or from the first frame marker (JPG, after the EXIF and ICC segments).
+	It can be read on the first chunks of an upload: needsMoreBytes tells if more bytes could complete it,
+	at most MAX_BYTES are read. The dimensions are 0 when they are not known (TIFF, not recognized, truncated).
+	*/
+	public static final int MAX_BYTES = 256 * 1024;		// the JPG frame marker is searched only in the first bytes
+	private static final int SNIFF_BYTES = 8;			// bytes needed to recognize every type
+
+	private final ImageType type;		// null if not recognized
+	private final int width;
+	private final int height;
+	private final boolean partial;		// more bytes could give the type or the dimensions
+
+	private ImageHeader(ImageType type, int width, int height, boolean partial) {
+		this.type = type;
+		this.width = width < 0 ? Integer.MAX_VALUE : width;		// 32 bits unsigned in the header
+		this.height = height < 0 ? Integer.MAX_VALUE : height;
+		this.partial = partial;
+	}
+
+	public static ImageHeader read(ByteString bytes) {
+		// the image, complete or only its first bytes
+		int size = Math.min(bytes.size(), MAX_BYTES);
+		boolean more = bytes.size() < MAX_BYTES;		// the next bytes of the image would be read too
+		if (size < SNIFF_BYTES) {
+			return new ImageHeader(null, 0, 0, more);
+		}
+		if (startsWith(bytes, 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)) {
+			return size < 24
+					? new ImageHeader(ImageType.PNG, 0, 0, more)
+					: new ImageHeader(ImageType.PNG, bigEndian32(bytes, 16), bigEndian32(bytes, 20), false);	// IHDR
+		}
+		if (startsWith(bytes, 'G', 'I', 'F', '8') && (bytes.byteAt(4) == '7' || bytes.byteAt(4) == '9') && bytes.byteAt(5) == 'a') {
+			return size < 10
+					? new ImageHeader(ImageType.GIF, 0, 0, more)
+					: new ImageHeader(ImageType.GIF, littleEndian16(bytes, 6), littleEndian16(bytes, 8), false);	// logical screen
+		}
+		if (startsWith(bytes, 0xFF, 0xD8, 0xFF)) {
+			return readJpeg(bytes, size, more);
+		}
+		if (startsWith(bytes, 'B', 'M')) {
+			return size < 26
+					? new ImageHeader(ImageType.BMP, 0, 0, more)
+					: new ImageHeader(ImageType.BMP, Math.abs(littleEndian32(bytes, 18)), Math.abs(littleEndian32(bytes, 22)), false);
+		}
+		if (startsWith(bytes, 'I', 'I', 0x2A, 0x00) || startsWith(bytes, 'M', 'M', 0x00, 0x2A)) {
+			return new ImageHeader(ImageType.TIFF, 0, 0, false);		// the dimensions are in an IFD anywhere in the file
+		}
+		return new ImageHeader(null, 0, 0, false);
+	}
+
+	public ImageType getType() {
+		return type;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public long getPixels() {
+		return (long) width * height;
+	}	// 0 if the dimensions are not known
+
+	public boolean hasSize() {
+		return width > 0 && height > 0;
+	}
+
+	public boolean needsMoreBytes() {
+		return partial;
+	}	// true if the header has been read from the first bytes and the next ones could complete it
+
+	private static ImageHeader readJpeg(ByteString bytes, int size, boolean more) {
+		// walk the segments up to the start of frame marker (SOF0-SOF15 but DHT, JPG and DAC)
+		int position = 2;
+		while (position + 4 <= size) {
+			if ((bytes.byteAt(position) & 0xFF) != 0xFF) {
+				return new ImageHeader(ImageType.JPG, 0, 0, false);		// not a marker: corrupted
+			}
+			int marker = bytes.byteAt(position + 1) & 0xFF;
+			if (marker == 0xFF) {
+				position++;		// fill byte
+			} else if (marker == 0xD8 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+				position += 2;	// markers without a segment
+			} else if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+				if (position + 9 > size) {
+					break;
+				}
+				return new ImageHeader(ImageType.JPG, bigEndian16(bytes, position + 7), bigEndian16(bytes, position + 5), false);
+			} else if (marker == 0xD9 || marker == 0xDA) {
+				return new ImageHeader(ImageType.JPG, 0, 0, false);		// end of image or scan without a frame
+			} else {
+				position += 2 + bigEndian16(bytes, position + 2);
+			}
+		}
+		return new ImageHeader(ImageType.JPG, 0, 0, more);
+	}
+
+	private static boolean startsWith(ByteString bytes, int... magic) {
+		for (int i = 0; i < magic.length; i++) {
+			if ((bytes.byteAt(i) & 0xFF) != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}	// the bytes must be at least SNIFF_BYTES
+
+	private static int bigEndian16(ByteString bytes, int position) {
+		return (bytes.byteAt(position) & 0xFF) << 8 | (bytes.byteAt(position + 1) & 0xFF);
+	}
+
+	private static int bigEndian32(ByteString bytes, int position) {
+		return bigEndian16(bytes, position) << 16 | bigEndian16(bytes, position + 2);
+	}
+
+	private static int littleEndian16(ByteString bytes, int position) {
+		return (bytes.byteAt(position) & 0xFF) | (bytes.byteAt(position + 1) & 0xFF) << 8;
+	}
+
+	private static int littleEndian32(ByteString bytes, int position) {
+		return littleEndian16(bytes, position) | littleEndian16(bytes, position + 2) << 16;
+	}
+}
@@ -0,0 +1,189 @@
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+public final class ImageIOConversionEngine implements ConversionEngine {
+	/*
+	Default conversion engine based on ImageIO.
+	Readers and writers are looked up once for each image type and reused (reset between requests),
+	instead of searching the ImageIO service providers at every conversion.
+	The ImageIO disk cache is disabled, the images are kept in memory in segments of the BufferPool
+	(PooledImageInputStream, PooledImageOutputStream) given back when the streams are closed.
+	Each output type can have its own write parameters in the server configuration file:
+	codec.<type>.quality: compression quality between 0 and 1 (e.g. JPG quality, PNG compression level)
+	codec.<type>.progressive: true to write progressive images (e.g. progressive JPG)
+	*/
+	private final Map<String, Queue<ImageReader>> readers = new ConcurrentHashMap<>();
+	private final Map<String, Queue<ImageWriter>> writers = new ConcurrentHashMap<>();
+
+	public ImageIOConversionEngine() {
+		ImageIO.setUseCache(false);
+	}
+
+	@Override
+	public boolean canRead(String imgType) {
+		return ImageIO.getImageReadersByFormatName(imgType.toLowerCase(Locale.ROOT)).hasNext();
+	}
+
+	@Override
+	public boolean canWrite(String imgType) {
+		return ImageIO.getImageWritersByFormatName(imgType.toLowerCase(Locale.ROOT)).hasNext();
+	}
+
+	@Override
+	public BufferedImage read(InputStream input, String imgType) throws IOException {
+		String format = imgType.toLowerCase(Locale.ROOT);
+		try (ImageInputStream imageInput = new PooledImageInputStream(input)) {
+			ImageReader reader = borrowReader(format);
+			if (reader != null && !reader.getOriginatingProvider().canDecodeInput(imageInput)) {
+				// the image is not of the declared type, it is decoded with the reader of its real type
+				readers.get(format).offer(reader);
+				reader = null;
+			}
+			if (reader == null) {
+				Iterator<ImageReader> found = ImageIO.getImageReaders(imageInput);
+				if (!found.hasNext()) {
+					throw new IOException("Image type not recognized!");
+				}
+				ImageReader other = found.next();
+				try {
+					other.setInput(imageInput, true, true);
+					return other.read(0);
+				} finally {
+					other.dispose();
+				}
+			}
+			try {
+				reader.setInput(imageInput, true, true);
+				return reader.read(0);
+			} finally {
+				reader.reset();
+				readers.get(format).offer(reader);
+			}
+		}
+	}
+
+	@Override
+	public void write(BufferedImage image, String imgType, OutputStream output) throws IOException {
+		String format = imgType.toLowerCase(Locale.ROOT);
+		ImageWriter writer = borrowWriter(format);
+		if (writer == null) {
+			throw new IOException("Output image type not supported!");
+		}
+		try (ImageOutputStream imageOutput = new PooledImageOutputStream(output)) {
+			writer.setOutput(imageOutput);
+			writer.write(null, new IIOImage(image, null, null), writeParam(writer, format));
+		} finally {
+			writer.reset();
+			writers.get(format).offer(writer);
+		}
+	}
+
+	@Override
+	public Dimension readSize(InputStream input, String imgType) throws IOException {
+		// only the header is read, an image that is not of the declared type is not converted in bands
+		String format = imgType.toLowerCase(Locale.ROOT);
+		ImageReader reader = borrowReader(format);
+		if (reader == null) {
+			return null;
+		}
+		try (ImageInputStream imageInput = new PooledImageInputStream(input)) {
+			if (!reader.getOriginatingProvider().canDecodeInput(imageInput)) {
+				return null;
+			}
+			reader.setInput(imageInput, true, true);
+			return new Dimension(reader.getWidth(0), reader.getHeight(0));
+		} finally {
+			reader.reset();
+			readers.get(format).offer(reader);
+		}
+	}
+
+	@Override
+	public void writeBanded(InputStream input, String typeOrigin, String typeTarget, OutputStream output,
+			int bandPixels, int subsampling, AlphaFlattener flattener) throws IOException {
+		String formatOrigin = typeOrigin.toLowerCase(Locale.ROOT);
+		String formatTarget = typeTarget.toLowerCase(Locale.ROOT);
+		ImageReader reader = borrowReader(formatOrigin);
+		ImageWriter writer = borrowWriter(formatTarget);
+		BandedImage image = null;
+		try (ImageInputStream imageInput = new PooledImageInputStream(input);
+				ImageOutputStream imageOutput = new PooledImageOutputStream(output)) {
+			if (reader == null || writer == null) {
+				throw new IOException("Image type not supported!");
+			}
+			// the input is kept in memory so that each band can be read again from the start of the image
+			reader.setInput(imageInput, false, true);
+			image = new BandedImage(reader, bandPixels, subsampling, flattener);
+			writer.setOutput(imageOutput);
+			writer.write(null, new IIOImage(image, null, null), writeParam(writer, formatTarget));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();		// a band could not be decoded while it was encoded
+		} finally {
+			if (image != null) {
+				image.close();
+			}
+			if (reader != null) {
+				reader.reset();
+				readers.get(formatOrigin).offer(reader);
+			}
+			if (writer != null) {
+				writer.reset();
+				writers.get(formatTarget).offer(writer);
+			}
+		}
+	}
+
+	private ImageReader borrowReader(String format) {
+		// return a reader of the type, a new one is created only if all of them are in use
+		ImageReader reader = readers.computeIfAbsent(format, f -> new ConcurrentLinkedQueue<>()).poll();
+		if (reader == null) {
+			Iterator<ImageReader> found = ImageIO.getImageReadersByFormatName(format);
+			reader = found.hasNext() ? found.next() : null;
+		}
+		return reader;
+	}
+
+	private ImageWriter borrowWriter(String format) {
+		// return a writer of the type, a new one is created only if all of them are in use
+		ImageWriter writer = writers.computeIfAbsent(format, f -> new ConcurrentLinkedQueue<>()).poll();
+		if (writer == null) {
+			Iterator<ImageWriter> found = ImageIO.getImageWritersByFormatName(format);
+			writer = found.hasNext() ? found.next() : null;
+		}
+		return writer;
+	}
+
+	private static ImageWriteParam writeParam(ImageWriter writer, String format) {
+		// write parameters of the type read from the server configuration, the writer defaults are used if they are missing
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		float quality = ServerConfiguration.getFloat("codec." + format + ".quality", -1);
+		if (quality >= 0 && quality <= 1 && param.canWriteCompressed()) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			if (param.getCompressionType() == null) {
+				param.setCompressionType(param.getCompressionTypes()[0]);
+			}
+			param.setCompressionQuality(quality);
+		}
+		if (ServerConfiguration.getBoolean("codec." + format + ".progressive", false) && param.canWriteProgressive()) {
+			param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+		}
+		return param;
+	}
+}
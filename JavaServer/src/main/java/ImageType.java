@@ -0,0 +1,25 @@
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+public enum ImageType {
+	/*
+	Image types known by the server. The types actually accepted are the ones of the configuration file
+	supported by the conversion engine. The name of the type is the one used in the configuration files and messages.
+	New types must be added at the end: the ordinal is saved by the RegistryStore.
+	*/
+	PNG, JPG, GIF, BMP, WBMP, TIFF;
+
+	private static final Map<String, ImageType> names = new HashMap<>();
+	static {
+		for (ImageType type : values()) {
+			names.put(type.name(), type);
+		}
+		names.put("JPEG", JPG);
+		names.put("TIF", TIFF);
+	}
+
+	public static ImageType parse(String name) {
+		return name == null ? null : names.get(name.toUpperCase(Locale.ROOT));
+	}	// return the type with this name (case insensitive), null if it is not known
+}
@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class LatencyHistogram {
+	/*
+	Histogram of durations with one bucket for each power of two of microseconds (below 1 us, below 2 us, ... below 2^26 us,
+	about 67 s, then the overflow bucket). Recording is one LongAdder increment for the bucket, the count and the sum,
+	so the threads recording at the same time do not contend and never wait for the readers.
+	The values read while recording are not a consistent snapshot, the difference is at most the values in flight.
+	*/
+	public static final int BUCKETS = 28;
+
+	private final LongAdder[] buckets = new LongAdder[BUCKETS];
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumNanos = new LongAdder();
+	private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+	public LatencyHistogram() {
+		for (int i = 0; i < BUCKETS; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		buckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+		count.increment();
+		sumNanos.add(nanos);
+		maxNanos.accumulate(nanos);
+	}
+
+	public static long upperBoundMicros(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+	}	// the durations of the bucket are below this value, the last bucket has no limit
+
+	public long getBucket(int bucket) {
+		return buckets[bucket].sum();
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getSumNanos() {
+		return sumNanos.sum();
+	}
+
+	public long getMaxNanos() {
+		return maxNanos.get();
+	}
+
+	public long percentileMicros(double percentile) {
+		// upper bound of the bucket containing the percentile (between 0 and 1), 0 if nothing has been recorded
+		long total = getCount();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i].sum();
+			if (seen >= rank) {
+				return i == BUCKETS - 1 ? getMaxNanos() / 1000 : upperBoundMicros(i);
+			}
+		}
+		return getMaxNanos() / 1000;
+	}
+}
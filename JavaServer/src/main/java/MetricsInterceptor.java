@@ -0,0 +1,41 @@
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public final class MetricsInterceptor implements ServerInterceptor {
+	/*
+	Records the latency and the status code of every call of the services, see ServerMetrics.
+	The latency goes from the start of the call to its close (or its cancellation by the client).
+	Each call is recorded once: a call cancelled and then closed (or closed and then cancelled) counts the first one.
+	*/
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+			ServerCallHandler<ReqT, RespT> next) {
+		final long start = System.nanoTime();
+		final String method = call.getMethodDescriptor().getBareMethodName();
+		final AtomicBoolean recorded = new AtomicBoolean(false);
+		ServerCall<ReqT, RespT> recordedCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+			@Override
+			public void close(Status status, Metadata trailers) {
+				if (recorded.compareAndSet(false, true)) {
+					ServerMetrics.call(method, status.getCode(), System.nanoTime() - start);
+				}
+				super.close(status, trailers);
+			}
+		};
+		return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(next.startCall(recordedCall, headers)) {
+			@Override
+			public void onCancel() {
+				if (recorded.compareAndSet(false, true)) {
+					ServerMetrics.call(method, Status.Code.CANCELLED, System.nanoTime() - start);
+				}
+				super.onCancel();
+			}
+		};
+	}
+}
@@ -0,0 +1,55 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class MetricsServer {
+	/*
+	Local HTTP endpoint with the metrics of the server (GET /metrics, Prometheus text format).
+	It listens on metrics.address (the loopback by default, so it is not reachable from other hosts) and metrics.port.
+	*/
+	private static final Logger logger = Logger.getLogger(MetricsServer.class.getName());
+
+	private final HttpServer server;
+
+	public MetricsServer(String address, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(address, port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = ServerMetrics.export().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream output = exchange.getResponseBody()) {
+				output.write(body);
+			}
+		});
+	}
+
+	public static MetricsServer fromConfiguration() {
+		// read the endpoint parameters from the server configuration, returns null if the endpoint is disabled
+		int port = ServerConfiguration.getInt("metrics.port", 9464);
+		if (port <= 0) {
+			return null;
+		}
+		try {
+			return new MetricsServer(ServerConfiguration.getString("metrics.address", "127.0.0.1"), port);
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Error while starting the metrics endpoint on port " + port, e);
+			return null;
+		}
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+}
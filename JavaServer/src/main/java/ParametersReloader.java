@@ -0,0 +1,150 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class ParametersReloader {
+	/*
+	Reloads the acceptable parameters when the configuration file changes, without restarting the server.
+	The file is watched with a WatchService and read by a background thread, never by the requests.
+	A file with invalid rows or without any image type is refused and the current parameters are kept.
+	The new parameters replace the old ones with a single write (see AcceptableParameters).
+	Registered clients policy: the negotiated sizes can only be lowered, never raised:
+	- an image type no longer accepted by the server is removed from the client
+	- a size over the new server limit is lowered to the limit (a client without limit gets the server limit)
+	The changed clients are saved in the RegistryStore. The conversions in progress keep the old parameters.
+	*/
+	private static final Logger logger = Logger.getLogger(ParametersReloader.class.getName());
+
+	private final File file;
+	private final ConversionEngine conversionEngine;
+	private final RegistryStore registryStore;		// null if the registrations are kept only in memory
+	private final long delayMillis;					// wait after a change, an editor can write the file in more steps
+	private final WatchService watchService;
+	private final Thread watcher;
+
+	public ParametersReloader(File file, ConversionEngine conversionEngine, RegistryStore registryStore, long delayMillis) throws IOException {
+		this.file = file.getAbsoluteFile();
+		this.conversionEngine = conversionEngine;
+		this.registryStore = registryStore;
+		this.delayMillis = delayMillis;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.file.getParentFile().toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		this.watcher = new Thread(this::watchLoop, "parameters-reloader");
+		this.watcher.setDaemon(true);
+	}
+
+	public static ParametersReloader fromConfiguration(File file, ConversionEngine conversionEngine, RegistryStore registryStore) {
+		// read the reload parameters from the server configuration, returns null if the reload is disabled
+		if (!ServerConfiguration.getBoolean("parameters.reload", true)) {
+			return null;
+		}
+		try {
+			return new ParametersReloader(file, conversionEngine, registryStore,
+					ServerConfiguration.getInt("parameters.reload.delay.ms", 200));
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Error while watching the configuration file, it will not be reloaded", e);
+			return null;
+		}
+	}
+
+	public void start() {
+		watcher.start();
+	}
+
+	public void close() {
+		try {
+			watchService.close();	// the watcher stops at the next wait
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Error while closing the configuration file watcher", e);
+		}
+	}
+
+	public boolean reload() {
+		// read the configuration file and apply it, return true if the acceptable parameters have changed
+		AcceptableParameters loaded;
+		try {
+			loaded = AcceptableParameters.read(file, conversionEngine);
+		} catch (IOException e) {
+			logger.log(Level.INFO, "Error while reading the configuration file, the current parameters are kept", e);
+			return false;
+		}
+		if (loaded.getInvalidRows() > 0 || loaded.isEmpty()) {
+			System.out.println("Configuration file not valid, the current parameters are kept");
+			return false;
+		}
+		if (loaded.equals(SharedParameters.getAcceptableParameters())) {
+			return false;
+		}
+		SharedParameters.setAcceptableParameters(loaded);
+		System.out.println("Acceptable Input Parameters: " + loaded.getInputParameters());
+		System.out.println("Acceptable Output Parameters: " + loaded.getOutputParameters());
+
+		int renegotiated = 0;
+		for (ClientParameters client : SharedParameters.getClients()) {
+			if (renegotiate(client, loaded) != client) {
+				renegotiated++;
+			}
+		}
+		System.out.println("Configuration file reloaded, clients with new parameters: " + renegotiated);
+		return true;
+	}
+
+	public ClientParameters renegotiate(ClientParameters client, AcceptableParameters acceptable) {
+		// apply the acceptable parameters to the registered client, return the client registered at the end
+		while (true) {
+			ClientParameters updated = client.limitedTo(acceptable);
+			if (updated.hasSameLimits(client)) {
+				return client;
+			}
+			if (SharedParameters.replaceClient(client, updated)) {
+				if (registryStore != null) {
+					registryStore.append(updated);
+				}
+				return updated;
+			}
+			client = SharedParameters.getClient(client.getClientId());	// changed meanwhile, try again
+			if (client == null) {
+				return null;
+			}
+		}
+	}
+
+	private void watchLoop() {
+		Path fileName = file.toPath().getFileName();
+		while (true) {
+			try {
+				WatchKey key = watchService.take();
+				boolean changed = false;
+				for (WatchEvent<?> event : key.pollEvents()) {
+					changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context());
+				}
+				if (!key.reset()) {
+					logger.log(Level.INFO, "The directory of the configuration file is no longer available");
+					return;
+				}
+				if (changed) {
+					// wait for the writes of the file to end, then drop the events of the same change
+					Thread.sleep(delayMillis);
+					while ((key = watchService.poll()) != null) {
+						key.pollEvents();
+						key.reset();
+					}
+					reload();
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			} catch (RuntimeException e) {
+				logger.log(Level.INFO, "Error while reloading the configuration file", e);
+			}
+		}
+	}
+}
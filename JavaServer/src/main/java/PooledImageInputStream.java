@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.stream.ImageInputStreamImpl;
+
+public final class PooledImageInputStream extends ImageInputStreamImpl {
+	/*
+	ImageInputStream over an InputStream that keeps the bytes read in a SegmentedBuffer, so that the reader can seek back.
+	It replaces the MemoryCacheImageInputStream of ImageIO, that allocates new blocks for each image:
+	the segments are taken from the BufferPool and given back when the reader flushes them or when the stream is closed.
+	*/
+	private final InputStream input;
+	private final SegmentedBuffer buffer = new SegmentedBuffer();
+	private final byte[] readBuffer;	// bytes of the input not yet cached
+	private long length;				// bytes of the input cached
+	private boolean ended;
+	private boolean closed;
+
+	public PooledImageInputStream(InputStream input) {
+		this.input = input;
+		this.readBuffer = new byte[BufferPool.MIN_SIZE];
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (!cacheUntil(streamPos + 1)) {
+			return -1;
+		}
+		return buffer.get(streamPos++);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+		cacheUntil(streamPos + len);
+		int n = (int) Math.min(len, length - streamPos);
+		if (n <= 0) {
+			return -1;
+		}
+		buffer.get(streamPos, b, off, n);
+		streamPos += n;
+		return n;
+	}
+
+	@Override
+	public void flushBefore(long pos) throws IOException {
+		super.flushBefore(pos);
+		buffer.releaseBefore(pos);
+	}	// a reader reading forward only flushes the bytes it has decoded, their segments are given back at once
+
+	@Override
+	public boolean isCached() {
+		return true;
+	}
+
+	@Override
+	public boolean isCachedMemory() {
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			buffer.release();
+			super.close();
+		}
+	}	// the input itself is not closed, as in the ImageIO streams
+
+	private boolean cacheUntil(long pos) throws IOException {
+		// read the input until pos, return false if it ends before
+		while (length < pos && !ended) {
+			int n = input.read(readBuffer, 0, (int) Math.min(readBuffer.length, Math.max(pos - length, 1)));
+			if (n < 0) {
+				ended = true;
+			} else {
+				buffer.put(length, readBuffer, 0, n);
+				length += n;
+			}
+		}
+		return length >= pos;
+	}
+}
@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+public final class PooledImageOutputStream extends ImageOutputStreamImpl {
+	/*
+	ImageOutputStream over an OutputStream that keeps the bytes written in a SegmentedBuffer until they are flushed,
+	so that the writer can seek back (e.g. to write the length of a PNG chunk).
+	It replaces the MemoryCacheImageOutputStream of ImageIO, that allocates new blocks for each image:
+	the segments are taken from the BufferPool, written to the output and given back when the writer flushes them
+	or when the stream is closed.
+	*/
+	private final OutputStream output;
+	private final SegmentedBuffer buffer = new SegmentedBuffer();
+	private long length;
+	private boolean closed;
+
+	public PooledImageOutputStream(OutputStream output) {
+		this.output = output;
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkClosed();
+		bitOffset = 0;
+		if (streamPos >= length) {
+			return -1;
+		}
+		return buffer.get(streamPos++);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkClosed();
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		bitOffset = 0;
+		if (len == 0) {
+			return 0;
+		}
+		int n = (int) Math.min(len, length - streamPos);
+		if (n <= 0) {
+			return -1;
+		}
+		buffer.get(streamPos, b, off, n);
+		streamPos += n;
+		return n;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		flushBits();		// checks that the stream is open
+		buffer.put(streamPos++, b);
+		length = Math.max(length, streamPos);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		flushBits();
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		buffer.put(streamPos, b, off, len);
+		streamPos += len;
+		length = Math.max(length, streamPos);
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	@Override
+	public void flushBefore(long pos) throws IOException {
+		// the bytes before pos will not change anymore, they are written to the output and their segments are given back
+		long flushed = flushedPos;
+		super.flushBefore(pos);
+		buffer.writeTo(output, flushed, pos);
+		buffer.releaseBefore(pos);
+	}
+
+	@Override
+	public boolean isCached() {
+		return true;
+	}
+
+	@Override
+	public boolean isCachedMemory() {
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// the rest of the bytes is written to the output, the segments are given back even if the write fails
+		if (closed) {
+			return;
+		}
+		try {
+			seek(length);
+			flushBefore(length);
+			super.close();
+		} finally {
+			closed = true;
+			buffer.release();
+		}
+	}	// the output itself is not closed, as in the ImageIO streams
+}
@@ -14,48 +14,71 @@ public class Registrator extends RegistratorImplBase {
 
 	private static final Logger logger = Logger.getLogger(Registrator.class.getName());
 	
+	private final RegistryStore registryStore;	// persistent store of the registrations, null if they are kept only in memory
+	private final ClusterNode clusterNode;		// other nodes sharing the registrations, null in single node mode
+	
+	public Registrator(RegistryStore registryStore) {
+		this(registryStore, null);
+	}
+	
+	public Registrator(RegistryStore registryStore, ClusterNode clusterNode) {
+		this.registryStore = registryStore;
+		this.clusterNode = clusterNode;
+	}
+	
 	@Override
-	public synchronized void registerClient(ClientRegistrationRequest request, StreamObserver<ClientRegistrationResponse> responseObserver) {
+	public void registerClient(ClientRegistrationRequest request, StreamObserver<ClientRegistrationResponse> responseObserver) {
 		// Service for Registration of ClientId
 		String clientId = request.getClientId();				// get the Id
-        System.out.println("ClientId: " + clientId.toString());
-        if (SharedParameters.getRegisteredClients(clientId)) {	// check if the Id already exists
-			// The clientId is already taken, refuse registration
-			logger.log(Level.INFO, "The clientId is not available, try again!");
-			// onNext send the response
-			responseObserver.onNext(ClientRegistrationResponse.newBuilder()
-					.setSuccess(false)
-					.setMessage("Client ID already taken!")
-					.build());
-	        responseObserver.onCompleted();
+		if (!RegistryStore.isValidClientId(clientId)) {
+			logger.log(Level.FINE, "ClientId too long!");
+			ServerMetrics.rejection("client_id_length");
+			responseObserver.onError(Status.INVALID_ARGUMENT
+					.withDescription("ClientId too long, at most " + RegistryStore.MAX_CLIENT_ID_BYTES + " bytes!")
+					.asRuntimeException());
+			return;
+		}
+		if (clusterNode != null && !clusterNode.isOwner(clientId)) {	// only the owner node registers the client
+			clusterNode.forwardRegistration(request, responseObserver);
+			return;
+		}
+        if (SharedParameters.getClient(clientId) != null) {	// check if the Id already exists
+        	refuseRegistration(responseObserver);
 	        return;
         } else {
     		try {
-	        	// Parameters Negotiation
-	        	SharedParameters.setRegisteredClients(clientId);	// save clientId
-	        	
-	            Map<String, Integer> negotiatedInputParams = negotiateParameters(	// negotiate input parameters
-	            		clientId,
-	                    request.getDesiredInputParametersList(),
-	                    SharedParameters.getAcceptableInputParameters());
-	        	
-	            Map<String, Integer> negotiatedOutputParams = negotiateParameters(	// negotiate output parameters
-	                    clientId,
-	                    request.getDesiredOutputParametersList(),
-	                    SharedParameters.getAcceptableOutputParameters());
+	        	// Parameters Negotiation, input and output with the same acceptable parameters
+	            AcceptableParameters acceptable = SharedParameters.getAcceptableParameters();
+	            ClientParameters client = negotiateClient(request, acceptable);
 	        	
-	            // Save negotiated input/output parameters for the client
-	            SharedParameters.setNegotiatedInputParameters(clientId, negotiatedInputParams);
-	            SharedParameters.setNegotiatedOutputParameters(clientId, negotiatedOutputParams);
-				// return the registration and parameters
-	            logger.log(Level.INFO, "Registration completed and parameters successfully negotiated!");
-	            responseObserver.onNext(ClientRegistrationResponse.newBuilder()
-	                    .setSuccess(true)
-	                    .setMessage("Registration completed and parameters successfully negotiated!")
-	                    .addAllNegotiatedInputParameters(convertMapToParametersList(negotiatedInputParams))
-	                    .addAllNegotiatedOutputParameters(convertMapToParametersList(negotiatedOutputParams))
-	                    .build());
-	            responseObserver.onCompleted();
+	            // Save the client with its negotiated input/output parameters, atomically: if two clients
+	            // register the same Id at the same time only one of them succeeds
+	            if (!SharedParameters.registerClient(client)) {
+	            	refuseRegistration(responseObserver);
+	            	return;
+	            }
+	            // the configuration file may have been reloaded meanwhile: negotiate again with the new parameters
+	            while (SharedParameters.getAcceptableParameters() != acceptable) {
+	            	acceptable = SharedParameters.getAcceptableParameters();
+	            	if (!SharedParameters.replaceClient(SharedParameters.getClient(clientId), negotiateClient(request, acceptable))) {
+	            		acceptable = null;		// changed by the reload, try again
+	            	}
+	            }
+	            ClientParameters registered = SharedParameters.getClient(clientId);
+	            if (clusterNode != null) {
+	            	clusterNode.replicate(registered);
+	            }
+	            if (registryStore == null) {
+	            	registrationCompleted(registered, responseObserver);
+	            } else {
+	            	// the response is sent when the registration has been saved (the thread is not blocked meanwhile)
+	            	registryStore.append(registered).whenComplete((saved, error) -> {
+	            		if (error != null) {
+	            			logger.log(Level.WARNING, "Registration not saved, it will be lost at restart!", error);
+	            		}
+	            		registrationCompleted(registered, responseObserver);
+	            	});
+	            }
 	            return;
         	} catch (Exception e) {	// see below for error check
 	          	  logger.log(Level.INFO,"Error during client registration!", e);
@@ -66,22 +89,44 @@ public class Registrator extends RegistratorImplBase {
 		}
 	}
 	
+	private void registrationCompleted(ClientParameters client, StreamObserver<ClientRegistrationResponse> responseObserver) {
+		// return the registration and parameters
+        logger.log(Level.FINE, "Registration completed and parameters successfully negotiated!");
+        responseObserver.onNext(ClientRegistrationResponse.newBuilder()
+                .setSuccess(true)
+                .setMessage("Registration completed and parameters successfully negotiated!")
+                .addAllNegotiatedInputParameters(convertMapToParametersList(client.getInputParameters()))
+                .addAllNegotiatedOutputParameters(convertMapToParametersList(client.getOutputParameters()))
+                .build());
+        responseObserver.onCompleted();
+	}
+	
+	private void refuseRegistration(StreamObserver<ClientRegistrationResponse> responseObserver) {
+		// The clientId is already taken, refuse registration
+		logger.log(Level.FINE, "The clientId is not available, try again!");
+		ServerMetrics.rejection("client_id_taken");
+		// onNext send the response
+		responseObserver.onNext(ClientRegistrationResponse.newBuilder()
+				.setSuccess(false)
+				.setMessage("Client ID already taken!")
+				.build());
+        responseObserver.onCompleted();
+	}
+	
 	// Service read negotiated parameters
     @Override
-	public synchronized void getNegotiatedParameters(ClientIdRequest request, StreamObserver<ClientRegistrationResponse> responseObserver) {
+	public void getNegotiatedParameters(ClientIdRequest request, StreamObserver<ClientRegistrationResponse> responseObserver) {
 		// Read the negotiated parameters from the Server
 		try {
 			String clientId = request.getClientId();				// get the Id
-            System.out.println("ClientId: " + clientId);
-	        if (SharedParameters.getRegisteredClients(clientId)) {	// check if the Id already exists
+            ClientParameters client = SharedParameters.getClient(clientId);
+	        if (client != null) {	// check if the Id already exists
 				// The client exists, return his parameters
-	        	Map<String, Integer> negotiatedInputParams = SharedParameters.getNegotiatedInputParameters(clientId);
-	        	Map<String, Integer> negotiatedOutputParams = SharedParameters.getNegotiatedOutputParameters(clientId);
+	        	Map<String, Integer> negotiatedInputParams = client.getInputParameters();
+	        	Map<String, Integer> negotiatedOutputParams = client.getOutputParameters();
 	            
-	            System.out.println(negotiatedInputParams);
-	            System.out.println(negotiatedOutputParams);
 	            // return parameters, read success
-	        	logger.log(Level.INFO, "Read of parameters completed!");
+	        	logger.log(Level.FINE, "Read of parameters completed!");
 	            responseObserver.onNext(ClientRegistrationResponse.newBuilder()
 	                    .setSuccess(true)
 	                    .setMessage("Negotiated Parameters read successfully!")
@@ -89,8 +134,11 @@ public class Registrator extends RegistratorImplBase {
 	                    .addAllNegotiatedOutputParameters(convertMapToParametersList(negotiatedOutputParams))
 	                    .build());
 	            responseObserver.onCompleted();
+	        } else if (clusterNode != null && !clusterNode.isOwner(clientId)) {	// not replicated yet, read it from its owner
+	        	clusterNode.forwardParametersRead(request, responseObserver);
 	        } else {	// client not registers
-	        	logger.log(Level.INFO, "Cannot read parameters, clientId is not registered!");
+	        	logger.log(Level.FINE, "Cannot read parameters, clientId is not registered!");
+	        	ServerMetrics.rejection("client_not_registered");
 	            responseObserver.onNext(ClientRegistrationResponse.newBuilder()
 	                    .setSuccess(false)
 	                    .setMessage("Cannot read parameters, clientId is not registered!")
@@ -105,6 +153,20 @@ public class Registrator extends RegistratorImplBase {
 		}
 	}
     
+    private ClientParameters negotiateClient(ClientRegistrationRequest request, AcceptableParameters acceptable) {
+    	String clientId = request.getClientId();
+        Map<String, Integer> negotiatedInputParams = negotiateParameters(	// negotiate input parameters
+        		clientId,
+                request.getDesiredInputParametersList(),
+                acceptable.getInputParameters());
+    	
+        Map<String, Integer> negotiatedOutputParams = negotiateParameters(	// negotiate output parameters
+                clientId,
+                request.getDesiredOutputParametersList(),
+                acceptable.getOutputParameters());
+        return new ClientParameters(clientId, negotiatedInputParams, negotiatedOutputParams);
+    }
+    
     private Map<String, Integer> negotiateParameters(String clientId, List<Parameter_pair> desiredParameters, Map<String, Integer> acceptableParameters) {
         // negotiate the parameters with the acceptable parameters of the server service
     	Map<String, Integer> negotiatedParams = new HashMap<>();		// negotiated parameters
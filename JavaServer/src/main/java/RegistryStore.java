@@ -0,0 +1,299 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+public final class RegistryStore {
+	/*
+	Persistent store of the registered clients and their negotiated parameters, so they survive a restart.
+	registry.log: append-only log, one record for each registration
+	registry.snapshot: compacted copy of all the clients, written every snapshotRecords records, then the log is emptied
+	The records are written by a single writer thread: all the records waiting in the queue are written together
+	and synced with one fsync (group commit), so a registration doesn't wait for its own disk write.
+	Record: length (int), CRC32 of the payload (int), payload. A partial record at the end of the log
+	(e.g. crash while writing: a header cut short, or a valid header with its payload cut short) is discarded
+	when the store is loaded; an invalid header, or an invalid record followed by other records, is corruption:
+	the store is not loaded (and not truncated) so no registration is silently lost. The snapshot is written
+	in a temporary file and renamed, so any invalid record in it is corruption.
+	Payload: clientId length (unsigned short, at most MAX_CLIENT_ID_BYTES), clientId (UTF-8), number of input types (byte), for each type
+	its ordinal (byte) and max size (int), then the same for the output types.
+	*/
+	private static final Logger logger = Logger.getLogger(RegistryStore.class.getName());
+	public static final int MAX_CLIENT_ID_BYTES = 0xFFFF;		// longest clientId that can be saved, in UTF-8 bytes
+	private static final int MAX_PAYLOAD_BYTES = 2 + MAX_CLIENT_ID_BYTES + 2 * (1 + ImageType.values().length * 5);
+	private static final ImageType[] imageTypes = ImageType.values();
+	private static final PendingRecord CLOSE = new PendingRecord(null);	// last record of the queue, stops the writer
+
+	private final Path logFile;
+	private final Path snapshotFile;
+	private final int snapshotRecords;		// records in the log after which a new snapshot is written
+	private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+	private FileChannel log;
+	private Thread writer;
+	private volatile boolean closed;
+
+	private static final class PendingRecord {
+		final ClientParameters client;
+		final CompletableFuture<Void> written = new CompletableFuture<>();
+
+		PendingRecord(ClientParameters client) {
+			this.client = client;
+		}
+	}
+
+	public RegistryStore(Path directory, int snapshotRecords) {
+		this.logFile = directory.resolve("registry.log");
+		this.snapshotFile = directory.resolve("registry.snapshot");
+		this.snapshotRecords = Math.max(1, snapshotRecords);
+	}
+
+	public static RegistryStore fromConfiguration() {
+		// read the store parameters from the server configuration, returns null if the registrations are kept only in memory
+		if (!ServerConfiguration.getBoolean("registry.persistent", true)) {
+			return null;
+		}
+		return new RegistryStore(new File(ServerConfiguration.getString("registry.directory", "registry")).toPath(),
+				ServerConfiguration.getInt("registry.snapshot.records", 100000));
+	}
+
+	public Map<String, ClientParameters> load() throws IOException {
+		// read the snapshot and the log (memory mapped), the last record of a client wins
+		Files.createDirectories(logFile.getParent());
+		Map<String, ClientParameters> clients = new LinkedHashMap<>();
+		if (Files.exists(snapshotFile)) {
+			try (FileChannel snapshot = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+				readRecords(snapshot, clients, false);
+			}
+		}
+		log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		long valid = readRecords(log, clients, true);
+		if (valid < log.size()) {
+			logger.log(Level.WARNING, "Discarding a partial record at the end of the registry log");
+			log.truncate(valid);
+		}
+		log.position(valid);
+		return clients;
+	}
+
+	public void start(Supplier<Collection<ClientParameters>> registeredClients) {
+		// start the writer thread, registeredClients returns all the clients when a snapshot is written
+		writer = new Thread(() -> writeLoop(registeredClients), "registry-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	public CompletableFuture<Void> append(ClientParameters client) {
+		// queue the record, the future is completed when it has been written and synced
+		PendingRecord record = new PendingRecord(client);
+		if (closed) {
+			record.written.completeExceptionally(new IOException("Registry store closed"));
+		} else if (!isValidClientId(client.getClientId())) {
+			record.written.completeExceptionally(new IllegalArgumentException("ClientId too long to be saved"));
+		} else {
+			queue.add(record);
+		}
+		return record.written;
+	}
+
+	public static boolean isValidClientId(String clientId) {
+		return clientId.getBytes(StandardCharsets.UTF_8).length <= MAX_CLIENT_ID_BYTES;
+	}	// return true if the clientId fits in a record
+
+	public void close() {
+		// write the records still in the queue and stop the writer
+		closed = true;
+		if (writer != null) {
+			queue.add(CLOSE);
+			try {
+				writer.join(5000);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void writeLoop(Supplier<Collection<ClientParameters>> registeredClients) {
+		long recordsInLog = 0;
+		List<PendingRecord> batch = new ArrayList<>();
+		boolean running = true;
+		while (running) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			queue.drainTo(batch);
+			running = !batch.remove(CLOSE);
+			if (batch.isEmpty()) {
+				continue;
+			}
+			try {
+				ByteBuffer buffer = ByteBuffer.allocate(batch.size() * 256);
+				for (PendingRecord record : batch) {
+					buffer = writeRecord(buffer, record.client);
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					log.write(buffer);
+				}
+				log.force(false);		// one fsync for the whole batch
+				for (PendingRecord record : batch) {
+					record.written.complete(null);
+				}
+				recordsInLog += batch.size();
+				if (recordsInLog >= snapshotRecords) {
+					writeSnapshot(registeredClients.get());
+					recordsInLog = 0;
+				}
+			} catch (IOException e) {
+				logger.log(Level.WARNING, "Error while writing the registry log!", e);
+				for (PendingRecord record : batch) {
+					record.written.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+		try {
+			log.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Error while closing the registry log!", e);
+		}
+	}
+
+	private void writeSnapshot(Collection<ClientParameters> clients) throws IOException {
+		// all the clients are written in a new snapshot, then the log is emptied.
+		// Records queued in the meantime are written in the new log, loading them twice is harmless
+		Path temporary = snapshotFile.resolveSibling("registry.snapshot.tmp");
+		try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+			for (ClientParameters client : clients) {
+				buffer = writeRecord(buffer, client);
+				if (buffer.position() > 48 * 1024) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						snapshot.write(buffer);
+					}
+					buffer.clear();
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				snapshot.write(buffer);
+			}
+			snapshot.force(false);
+		}
+		Files.move(temporary, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		log.truncate(0);
+		log.force(false);
+		logger.log(Level.INFO, "Registry snapshot written with " + clients.size() + " clients");
+	}
+
+	private static ByteBuffer writeRecord(ByteBuffer buffer, ClientParameters client) {
+		byte[] clientId = client.getClientId().getBytes(StandardCharsets.UTF_8);
+		int payloadLength = 2 + clientId.length + 1 + client.getInputLimits().size() * 5 + 1 + client.getOutputLimits().size() * 5;
+		if (buffer.remaining() < 8 + payloadLength) {
+			ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + 8 + payloadLength));
+			buffer.flip();
+			buffer = bigger.put(buffer);
+		}
+		int start = buffer.position();
+		buffer.putInt(payloadLength).putInt(0);
+		if (clientId.length > MAX_CLIENT_ID_BYTES) {
+			throw new IllegalArgumentException("ClientId too long to be saved");
+		}
+		buffer.putShort((short) clientId.length).put(clientId);		// unsigned
+		writeLimits(buffer, client.getInputLimits());
+		writeLimits(buffer, client.getOutputLimits());
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), buffer.arrayOffset() + start + 8, payloadLength);
+		buffer.putInt(start + 4, (int) crc.getValue());
+		return buffer;
+	}
+
+	private static void writeLimits(ByteBuffer buffer, Map<ImageType, Integer> limits) {
+		buffer.put((byte) limits.size());
+		for (Map.Entry<ImageType, Integer> entry : limits.entrySet()) {
+			buffer.put((byte) entry.getKey().ordinal()).putInt(entry.getValue());
+		}
+	}
+
+	private static long readRecords(FileChannel channel, Map<String, ClientParameters> clients, boolean partialTail) throws IOException {
+		// read the records of the file, return the position after the last valid record
+		// partialTail: a record cut short at the end of the file is discarded instead of being corruption
+		long size = channel.size();
+		if (size == 0) {
+			return 0;
+		}
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		CRC32 crc = new CRC32();
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			if (buffer.remaining() < 8) {
+				return invalidRecord(start, partialTail);		// header cut short at the end of the file
+			}
+			int payloadLength = buffer.getInt();
+			int checksum = buffer.getInt();
+			if (payloadLength <= 0 || payloadLength > MAX_PAYLOAD_BYTES) {
+				return invalidRecord(start, false);				// not the header of a record
+			}
+			if (payloadLength > buffer.remaining()) {
+				return invalidRecord(start, partialTail);		// valid header, payload cut short at the end of the file
+			}
+			ByteBuffer payload = buffer.slice();
+			payload.limit(payloadLength);
+			crc.reset();
+			crc.update(payload.duplicate());
+			boolean last = partialTail && start + 8 + payloadLength == size;
+			if ((int) crc.getValue() != checksum) {
+				return invalidRecord(start, last);
+			}
+			try {
+				byte[] clientId = new byte[payload.getShort() & 0xFFFF];
+				payload.get(clientId);
+				String id = new String(clientId, StandardCharsets.UTF_8);
+				clients.put(id, new ClientParameters(id, readLimits(payload), readLimits(payload)));
+			} catch (RuntimeException e) {
+				return invalidRecord(start, last);
+			}
+			buffer.position(start + 8 + payloadLength);
+		}
+		return buffer.position();
+	}
+
+	private static long invalidRecord(long start, boolean last) throws IOException {
+		// the last record can be incomplete after a crash (the file grown but the payload not written yet), it is discarded
+		if (last) {
+			return start;
+		}
+		throw new IOException("Registry corrupted: invalid record at position " + start);
+	}
+
+	private static EnumMap<ImageType, Integer> readLimits(ByteBuffer payload) {
+		EnumMap<ImageType, Integer> limits = new EnumMap<>(ImageType.class);
+		int types = payload.get();
+		for (int i = 0; i < types; i++) {
+			limits.put(imageTypes[payload.get()], payload.getInt());
+		}
+		return limits;
+	}
+}
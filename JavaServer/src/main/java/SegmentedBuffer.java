@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class SegmentedBuffer {
+	/*
+	Growable random access buffer made of segments acquired from the BufferPool, used by the ImageIO streams.
+	The segments double in size from BufferPool.MIN_SIZE to BufferPool.MAX_SIZE, then they are all MAX_SIZE:
+	a small image takes a few small segments, a big one never needs a big array (no humongous allocations) nor a copy to grow.
+	The segments before a position can be released early when they will not be read again (flushBefore of the streams).
+	The owner must call release on every path, then the buffer must not be used anymore.
+	*/
+	private static final int DOUBLING = Integer.numberOfTrailingZeros(BufferPool.MAX_SIZE / BufferPool.MIN_SIZE) + 1;
+	private static final long DOUBLING_BYTES = ((long) BufferPool.MIN_SIZE << DOUBLING) - BufferPool.MIN_SIZE;
+
+	private final List<BufferPool.Buffer> segments = new ArrayList<>();	// null for the segments already released
+	private long capacity;
+
+	public void put(long position, int b) {
+		ensureCapacity(position + 1);
+		int segment = segment(position);
+		segments.get(segment).array()[(int) (position - start(segment))] = (byte) b;
+	}
+
+	public void put(long position, byte[] b, int off, int len) {
+		ensureCapacity(position + len);
+		while (len > 0) {
+			int segment = segment(position);
+			int offset = (int) (position - start(segment));
+			int n = Math.min(len, size(segment) - offset);
+			System.arraycopy(b, off, segments.get(segment).array(), offset, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	public int get(long position) {
+		int segment = segment(position);
+		return segments.get(segment).array()[(int) (position - start(segment))] & 0xFF;
+	}	// the position must have been written
+
+	public void get(long position, byte[] b, int off, int len) {
+		while (len > 0) {
+			int segment = segment(position);
+			int offset = (int) (position - start(segment));
+			int n = Math.min(len, size(segment) - offset);
+			System.arraycopy(segments.get(segment).array(), offset, b, off, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}	// the positions must have been written
+
+	public void writeTo(OutputStream output, long from, long to) throws IOException {
+		// write the bytes from ---> to, without copying them
+		while (from < to) {
+			int segment = segment(from);
+			int offset = (int) (from - start(segment));
+			int n = (int) Math.min(to - from, size(segment) - offset);
+			output.write(segments.get(segment).array(), offset, n);
+			from += n;
+		}
+	}
+
+	public void releaseBefore(long position) {
+		// give back the segments that end before position
+		for (int segment = 0; segment < segments.size() && start(segment) + size(segment) <= position; segment++) {
+			if (segments.get(segment) != null) {
+				segments.get(segment).release();
+				segments.set(segment, null);
+			}
+		}
+	}
+
+	public void release() {
+		for (BufferPool.Buffer buffer : segments) {
+			if (buffer != null) {
+				buffer.release();
+			}
+		}
+		segments.clear();
+		capacity = 0;
+	}
+
+	private void ensureCapacity(long end) {
+		while (capacity < end) {
+			int size = size(segments.size());
+			segments.add(BufferPool.acquire(size));
+			capacity += size;
+		}
+	}
+
+	private static int size(int segment) {
+		return segment < DOUBLING ? BufferPool.MIN_SIZE << segment : BufferPool.MAX_SIZE;
+	}
+
+	private static long start(int segment) {
+		if (segment < DOUBLING) {
+			return ((long) BufferPool.MIN_SIZE << segment) - BufferPool.MIN_SIZE;
+		}
+		return DOUBLING_BYTES + (long) (segment - DOUBLING) * BufferPool.MAX_SIZE;
+	}
+
+	private static int segment(long position) {
+		if (position < DOUBLING_BYTES) {
+			return 31 - Integer.numberOfLeadingZeros((int) (position / BufferPool.MIN_SIZE + 1));
+		}
+		return DOUBLING + (int) ((position - DOUBLING_BYTES) / BufferPool.MAX_SIZE);
+	}
+}
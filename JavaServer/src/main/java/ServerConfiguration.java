@@ -0,0 +1,77 @@
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Properties;
+import java.util.TreeSet;
+
+public class ServerConfiguration {
+	/*
+	Tuning parameters of the server, read once at start from the server configuration file.
+	Each row is "key value" (e.g. "worker.threads 8"), rows starting with # are comments.
+	Every parameter has a default value, so the file and each of its rows are optional.
+	*/
+	private static volatile Properties properties = new Properties();
+
+	public static void load(File fileName) {
+		// read the server configuration file
+		Properties loaded = new Properties();
+		try (Reader reader = new FileReader(fileName)) {
+			loaded.load(reader);
+			properties = loaded;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static String getString(String key, String defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : value.trim();
+	}	// return the value of the key, or the default one if it is missing
+
+	public static int getInt(String key, int defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + key + ": " + value);
+			return defaultValue;
+		}
+	}	// return the integer value of the key, or the default one if it is missing or invalid
+
+	public static float getFloat(String key, float defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Float.parseFloat(value.trim());
+		} catch (NumberFormatException e) {
+			System.out.println("Invalid value for " + key + ": " + value);
+			return defaultValue;
+		}
+	}	// return the decimal value of the key, or the default one if it is missing or invalid
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = properties.getProperty(key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+	}	// return the boolean value of the key, or the default one if it is missing
+
+	public static String fingerprint(String... prefixes) {
+		// the keys starting with one of the prefixes and their values, sorted, as one string
+		Properties current = properties;
+		StringBuilder fingerprint = new StringBuilder();
+		for (String key : new TreeSet<>(current.stringPropertyNames())) {
+			for (String prefix : prefixes) {
+				if (key.startsWith(prefix)) {
+					fingerprint.append(key).append('=').append(current.getProperty(key).trim()).append('\n');
+					break;
+				}
+			}
+		}
+		return fingerprint.toString();
+	}	// two configurations with the same parameters of these groups have the same fingerprint
+}
@@ -0,0 +1,167 @@
+import io.grpc.Status;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerMetrics {
+	/*
+	Metrics of the server, shared between all services (like SharedParameters)
+	phases: latency histogram of each phase of a conversion
+	bytesIn/bytesOut: size of the images received and sent back
+	conversions: successful conversions for each origin and target type, and for each client
+	passthroughs: images sent back as they were received (already of the target type and size)
+	rejections: requests refused, for each reason (the failed checks of the Converter and Registrator)
+	calls: latency and status of each gRPC method, recorded by the MetricsInterceptor
+	buffer pool: buffers acquired, allocated, leaked and in use, recorded by the BufferPool
+	executor and cache: queue depth, active workers and rejected conversions of the ConversionExecutor,
+	  hits, hit ratio and bytes saved of the ConversionCache, read from them at each export
+	Recording only increments LongAdder counters, it never blocks and never writes to the console.
+	The metrics are exported in the Prometheus text format by the MetricsServer.
+	*/
+	public enum Phase {
+		RECEIVE,	// first message of the request ---> last one
+		QUEUE,		// waiting for a conversion worker
+		DECODE,
+		FLATTEN,
+		ENCODE,
+		FIT,		// downscale and encode again to fit the output size
+		BANDED,		// decode, flatten and encode of a big image a band at a time
+		SEND		// first chunk of the reply ---> last one
+	}
+
+	private static final LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+	private static final LongAdder passthroughs = new LongAdder();
+	private static final ConcurrentHashMap<String, LongAdder> conversions = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, LongAdder> clientConversions = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, LongAdder> rejections = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, LatencyHistogram> calls = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, LongAdder> callStatus = new ConcurrentHashMap<>();
+	private static volatile int maxClients = 1000;		// clients counted one by one, the others are counted together
+	private static volatile ConversionExecutor conversionExecutor;	// null if not exported
+	private static volatile ConversionCache conversionCache;
+
+	static {
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new LatencyHistogram();
+		}
+	}
+
+	public static void configure(ConversionExecutor executor, ConversionCache cache) {
+		maxClients = ServerConfiguration.getInt("metrics.clients.max", 1000);
+		conversionExecutor = executor;
+		conversionCache = cache;
+	}	// read the metrics parameters from the server configuration, the executor and the cache are exported too
+
+	public static void recordPhase(Phase phase, long nanos) {
+		phases[phase.ordinal()].record(nanos);
+	}
+
+	public static void addBytesIn(long bytes) {
+		bytesIn.add(bytes);
+	}
+
+	public static void addBytesOut(long bytes) {
+		bytesOut.add(bytes);
+	}
+
+	public static void conversion(String clientId, ImageType typeOrigin, ImageType typeTarget) {
+		// a successful conversion of the client
+		conversions.computeIfAbsent(typeOrigin + "\u0000" + typeTarget, k -> new LongAdder()).increment();
+		LongAdder client = clientConversions.get(clientId);
+		if (client == null) {
+			client = clientConversions.size() < maxClients
+					? clientConversions.computeIfAbsent(clientId, k -> new LongAdder())
+					: clientConversions.computeIfAbsent("", k -> new LongAdder());
+		}
+		client.increment();
+	}
+
+	public static void passthrough() {
+		passthroughs.increment();
+	}	// an image sent back without being converted
+
+	public static void rejection(String reason) {
+		rejections.computeIfAbsent(reason, k -> new LongAdder()).increment();
+	}	// a request refused, reason is a short name like "input_size"
+
+	public static void call(String method, Status.Code code, long nanos) {
+		calls.computeIfAbsent(method, k -> new LatencyHistogram()).record(nanos);
+		callStatus.computeIfAbsent(method + "\u0000" + code, k -> new LongAdder()).increment();
+	}	// a gRPC call completed with the status code
+
+	public static LatencyHistogram getPhase(Phase phase) {
+		return phases[phase.ordinal()];
+	}
+
+	public static String export() {
+		// all the metrics in the Prometheus text format
+		StringBuilder out = new StringBuilder(8192);
+		out.append("# TYPE conversion_phase_seconds histogram\n");
+		for (Phase phase : Phase.values()) {
+			histogram(out, "conversion_phase_seconds", "phase", phase.name().toLowerCase(Locale.ROOT), phases[phase.ordinal()]);
+		}
+		out.append("# TYPE conversion_bytes_in_total counter\n");
+		out.append("conversion_bytes_in_total ").append(bytesIn.sum()).append('\n');
+		out.append("# TYPE conversion_bytes_out_total counter\n");
+		out.append("conversion_bytes_out_total ").append(bytesOut.sum()).append('\n');
+		out.append("# TYPE conversion_total counter\n");
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(conversions).entrySet()) {
+			String[] types = entry.getKey().split("\u0000");
+			out.append("conversion_total{origin=\"").append(types[0]).append("\",target=\"").append(types[1])
+					.append("\"} ").append(entry.getValue().sum()).append('\n');
+		}
+		out.append("# TYPE conversion_passthrough_total counter\n");
+		out.append("conversion_passthrough_total ").append(passthroughs.sum()).append('\n');
+		out.append("# TYPE conversion_client_total counter\n");
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(clientConversions).entrySet()) {
+			out.append("conversion_client_total{client=\"").append(entry.getKey().isEmpty() ? "other" : escape(entry.getKey()))
+					.append("\"} ").append(entry.getValue().sum()).append('\n');
+		}
+		out.append("# TYPE conversion_rejected_total counter\n");
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(rejections).entrySet()) {
+			out.append("conversion_rejected_total{reason=\"").append(entry.getKey()).append("\"} ")
+					.append(entry.getValue().sum()).append('\n');
+		}
+		out.append("# TYPE grpc_server_handled_total counter\n");
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(callStatus).entrySet()) {
+			String[] call = entry.getKey().split("\u0000");
+			out.append("grpc_server_handled_total{method=\"").append(call[0]).append("\",code=\"").append(call[1])
+					.append("\"} ").append(entry.getValue().sum()).append('\n');
+		}
+		out.append("# TYPE grpc_server_handling_seconds histogram\n");
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(calls).entrySet()) {
+			histogram(out, "grpc_server_handling_seconds", "method", entry.getKey(), entry.getValue());
+		}
+		BufferPool.export(out);
+		ConversionExecutor executor = conversionExecutor;
+		if (executor != null) {
+			executor.export(out);
+		}
+		ConversionCache cache = conversionCache;
+		if (cache != null) {
+			cache.export(out);
+		}
+		return out.toString();
+	}
+
+	private static void histogram(StringBuilder out, String name, String label, String value, LatencyHistogram histogram) {
+		// cumulative buckets, their limits are in seconds
+		String labels = label + "=\"" + value + "\"";
+		long cumulative = 0;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+			cumulative += histogram.getBucket(i);
+			String le = i == LatencyHistogram.BUCKETS - 1 ? "+Inf" : Double.toString(LatencyHistogram.upperBoundMicros(i) / 1e6);
+			out.append(name).append("_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+		}
+		out.append(name).append("_sum{").append(labels).append("} ").append(histogram.getSumNanos() / 1e9).append('\n');
+		out.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,187 @@
+import io.grpc.CompressorRegistry;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class ServerTransport {
+	/*
+	Netty transport of the gRPC server, read from the server configuration (transport.* keys).
+	boss/worker: event loops accepting the connections and reading/writing them (epoll on Linux when available, else NIO)
+	executor: threads running the service methods (the handlers of the received messages), the conversions run on the ConversionExecutor
+	flow window: bytes a client can send on a stream before waiting for the server, a bigger window lets a big image
+	  be sent without stopping every 64 KB on the connections with a high latency
+	message max: biggest message received, the images are sent in chunks so it only has to fit the biggest chunk
+	keepalive, idle, age: pings of the connections without traffic and closing of the idle and of the old ones
+	  (age moves the clients to the new nodes after a scale up, the calls in progress end within the grace time)
+	compression: encoding of the replies (gzip or none), used only if the client accepts it;
+	  JPG, PNG and GIF are already compressed, it helps only the uncompressed outputs (BMP, TIFF, WBMP)
+	The times are in seconds, 0 keeps the gRPC default (no limit for idle and age).
+	*/
+	private static final Logger logger = Logger.getLogger(ServerTransport.class.getName());
+
+	private final boolean epoll;
+	private final EventLoopGroup bossGroup;
+	private final EventLoopGroup workerGroup;
+	private final ExecutorService executor;		// null for the default executor of gRPC
+	private final int flowWindowBytes;
+	private final int maxMessageBytes;
+	private final int maxCallsPerConnection;	// 0 = no limit
+	private final long keepAliveSeconds;
+	private final long keepAliveTimeoutSeconds;
+	private final long permitKeepAliveSeconds;
+	private final long maxIdleSeconds;
+	private final long maxAgeSeconds;
+	private final long maxAgeGraceSeconds;
+	private final String compression;			// null = no compression
+
+	public ServerTransport(boolean useEpoll, int bossThreads, int workerThreads, int executorThreads,
+			int flowWindowBytes, int maxMessageBytes, int maxCallsPerConnection,
+			long keepAliveSeconds, long keepAliveTimeoutSeconds, long permitKeepAliveSeconds,
+			long maxIdleSeconds, long maxAgeSeconds, long maxAgeGraceSeconds, String compression) {
+		this.epoll = useEpoll && Epoll.isAvailable();
+		if (useEpoll && !epoll) {
+			logger.log(Level.INFO, "Epoll not available, using NIO", Epoll.unavailabilityCause());
+		}
+		this.bossGroup = eventLoopGroup(bossThreads, "grpc-boss");
+		this.workerGroup = eventLoopGroup(workerThreads, "grpc-worker");		// 0 threads = 2 for each core (Netty default)
+		this.executor = executorThreads > 0 ? Executors.newFixedThreadPool(executorThreads, threadFactory("grpc-executor-")) : null;
+		this.flowWindowBytes = flowWindowBytes;
+		this.maxMessageBytes = maxMessageBytes;
+		this.maxCallsPerConnection = maxCallsPerConnection;
+		this.keepAliveSeconds = keepAliveSeconds;
+		this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds;
+		this.permitKeepAliveSeconds = permitKeepAliveSeconds;
+		this.maxIdleSeconds = maxIdleSeconds;
+		this.maxAgeSeconds = maxAgeSeconds;
+		this.maxAgeGraceSeconds = maxAgeGraceSeconds;
+		if ("none".equalsIgnoreCase(compression) || compression.isEmpty()) {
+			compression = null;
+		} else if (CompressorRegistry.getDefaultInstance().lookupCompressor(compression) == null) {
+			System.out.println("Unknown compression " + compression + ", the replies are not compressed");
+			compression = null;
+		}
+		this.compression = compression;
+	}
+
+	public static ServerTransport fromConfiguration() {
+		// read the transport parameters from the server configuration, by default one executor thread for each core
+		return new ServerTransport(
+				ServerConfiguration.getBoolean("transport.epoll", true),
+				Math.max(1, ServerConfiguration.getInt("transport.boss.threads", 1)),
+				Math.max(0, ServerConfiguration.getInt("transport.worker.threads", 0)),
+				ServerConfiguration.getInt("transport.executor.threads", Runtime.getRuntime().availableProcessors()),
+				ServerConfiguration.getInt("transport.flow.window.kb", 1024) * 1024,
+				ServerConfiguration.getInt("transport.message.max.kb", 4096) * 1024,
+				ServerConfiguration.getInt("transport.connection.calls.max", 0),
+				ServerConfiguration.getInt("transport.keepalive.s", 0),
+				ServerConfiguration.getInt("transport.keepalive.timeout.s", 0),
+				ServerConfiguration.getInt("transport.keepalive.permit.s", 0),
+				ServerConfiguration.getInt("transport.connection.idle.s", 0),
+				ServerConfiguration.getInt("transport.connection.age.s", 0),
+				ServerConfiguration.getInt("transport.connection.age.grace.s", 0),
+				ServerConfiguration.getString("transport.compression", "none"));
+	}
+
+	public NettyServerBuilder builder(int port) {
+		// server builder on the port with this transport, the services are added by the caller
+		return builder(new InetSocketAddress(port));
+	}	// on all the interfaces
+
+	public NettyServerBuilder builder(SocketAddress address) {
+		NettyServerBuilder builder = NettyServerBuilder.forAddress(address)
+				.channelType(epoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+				.bossEventLoopGroup(bossGroup)
+				.workerEventLoopGroup(workerGroup)
+				.flowControlWindow(flowWindowBytes)
+				.maxInboundMessageSize(maxMessageBytes);
+		if (executor != null) {
+			builder.executor(executor);
+		}
+		if (maxCallsPerConnection > 0) {
+			builder.maxConcurrentCallsPerConnection(maxCallsPerConnection);
+		}
+		if (keepAliveSeconds > 0) {
+			builder.keepAliveTime(keepAliveSeconds, TimeUnit.SECONDS);
+		}
+		if (keepAliveTimeoutSeconds > 0) {
+			builder.keepAliveTimeout(keepAliveTimeoutSeconds, TimeUnit.SECONDS);
+		}
+		if (permitKeepAliveSeconds > 0) {
+			builder.permitKeepAliveTime(permitKeepAliveSeconds, TimeUnit.SECONDS);
+		}
+		if (maxIdleSeconds > 0) {
+			builder.maxConnectionIdle(maxIdleSeconds, TimeUnit.SECONDS);
+		}
+		if (maxAgeSeconds > 0) {
+			builder.maxConnectionAge(maxAgeSeconds, TimeUnit.SECONDS);
+		}
+		if (maxAgeGraceSeconds > 0) {
+			builder.maxConnectionAgeGrace(maxAgeGraceSeconds, TimeUnit.SECONDS);
+		}
+		if (compression != null) {
+			builder.intercept(compressionInterceptor(compression));
+		}
+		return builder;
+	}
+
+	public void shutdown() {
+		// after the termination of the server, the event loops and the executor are not closed by it
+		bossGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+		workerGroup.shutdownGracefully(0, 5, TimeUnit.SECONDS);
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (epoll ? "epoll" : "nio") + ", executor " + (executor != null ? "fixed" : "default")
+				+ ", flow window " + flowWindowBytes / 1024 + " KB, max message " + maxMessageBytes / 1024 + " KB"
+				+ ", compression " + (compression != null ? compression : "none");
+	}
+
+	private EventLoopGroup eventLoopGroup(int threads, String name) {
+		DefaultThreadFactory threadFactory = new DefaultThreadFactory(name, true);
+		return epoll ? new EpollEventLoopGroup(threads, threadFactory) : new NioEventLoopGroup(threads, threadFactory);
+	}
+
+	private static ThreadFactory threadFactory(String prefix) {
+		final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+		final AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = defaultFactory.newThread(runnable);
+			thread.setName(prefix + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static ServerInterceptor compressionInterceptor(String compression) {
+		// the replies are compressed with the encoding only if the client accepts it (grpc-accept-encoding), else they are sent as they are
+		return new ServerInterceptor() {
+			@Override
+			public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+				call.setCompression(compression);
+				return next.startCall(call, headers);
+			}
+		};
+	}
+}
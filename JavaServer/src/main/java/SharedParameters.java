@@ -1,83 +1,61 @@
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.Collections;
 
 public class SharedParameters {
 	/*
 	Concurrent shared data structures between all services
-	registeredClients: list of Id of all registered clients
-	negotiatedInputParameters: all the clients registered with their Id and their negotiated parameters
-	negotiatedOutputParameters: all the clients registered with their Id and their negotiated parameters 
-	acceptableInputParameters: acceptable input image size for each image type
-	acceptableOutputParameters: acceptable output image size for each image type
+	registeredClients: all the registered clients with their Id and their negotiated parameters (immutable record)
+	acceptableParameters: acceptable input and output image size for each image type (immutable set,
+	replaced as a whole when the configuration file is reloaded)
 	*/
-    private static final Set<String> registeredClients = Collections.newSetFromMap(new ConcurrentHashMap<>());
-    private static final ConcurrentHashMap<String, Map<String, Integer>> negotiatedInputParameters = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Map<String, Integer>> negotiatedOutputParameters = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Integer> acceptableInputParameters = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, Integer> acceptableOutputParameters = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ClientParameters> registeredClients = new ConcurrentHashMap<>();
+    private static volatile AcceptableParameters acceptableParameters =
+    		new AcceptableParameters(Collections.emptyMap(), Collections.emptyMap());
 
-    public static boolean getRegisteredClients(String clientId) {
-    	boolean containsId = registeredClients.contains(clientId);
-    	return containsId;
-    }	// return true if the clientId is in the registeredClients
-    
-    public static Map<String, Integer> getNegotiatedInputParameters(String clientId) {
-        return negotiatedInputParameters.get(clientId);
-    }	// return the negotiated input type and size of a clientId
+    public static ClientParameters getClient(String clientId) {
+        return registeredClients.get(clientId);
+    }	// return the registration of the client with its negotiated parameters, null if it is not registered
     
-    public static Map<String, Integer> getNegotiatedOutputParameters(String clientId) {
-        return negotiatedOutputParameters.get(clientId);
-    }	// return the negotiated output type and size of a clientId
-   
-    public static ConcurrentHashMap<String, Integer> getAcceptableInputParameters() {
-        return acceptableInputParameters;
+    public static Map<String, Integer> getAcceptableInputParameters() {
+        return acceptableParameters.getInputParameters();
     }	// return acceptable input type and size parameters read from the configuration file
     
-    public static ConcurrentHashMap<String, Integer> getAcceptableOutputParameters() {
-        return acceptableOutputParameters;
+    public static Map<String, Integer> getAcceptableOutputParameters() {
+        return acceptableParameters.getOutputParameters();
     }	// return acceptable output type and size parameters read from the configuration file
     
-    public static void setRegisteredClients(String clientId) {
-    	registeredClients.add(clientId);
-    }	// add the client the the registered clients list
+    public static Collection<ClientParameters> getClients() {
+        return registeredClients.values();
+    }	// return all the registered clients (live view)
+    
+    public static boolean registerClient(ClientParameters client) {
+    	return registeredClients.putIfAbsent(client.getClientId(), client) == null;
+    }	// add the client with its negotiated parameters, return false if the clientId is already taken
+    
+    public static void putClient(ClientParameters client) {
+    	registeredClients.put(client.getClientId(), client);
+    }	// add or replace the client, used for the registrations replicated by the other nodes (see ClusterNode)
+    
+    public static boolean replaceClient(ClientParameters client, ClientParameters updated) {
+    	return registeredClients.replace(client.getClientId(), client, updated);
+    }	// replace the negotiated parameters of the client, return false if they have been changed meanwhile
     
-    public static void setNegotiatedInputParameters(String clientId, Map<String, Integer> parameters) {
-    	negotiatedInputParameters.put(clientId, parameters);
-    }	// add the negotiated input parameters for a new client
+    public static AcceptableParameters getAcceptableParameters() {
+        return acceptableParameters;
+    }	// return the current acceptable parameters, read them once to negotiate input and output with the same set
     
-    public static void setNegotiatedOutputParameters(String clientId, Map<String, Integer> parameters) {
-    	negotiatedOutputParameters.put(clientId, parameters);
-    }	// add the negotiated output parameters for a new client
+    public static void setAcceptableParameters(AcceptableParameters parameters) {
+        acceptableParameters = parameters;
+    }	// replace the acceptable parameters, the registrations already in progress keep the old ones
     
-    public static void setAcceptableParameters(File fileName) {
-    	// read the configuration file parameters
-        try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
-            String row;
-            while ((row = br.readLine()) != null) {
-                String[] rows = row.split(" ");
-                if (rows.length == 3) {
-                    String ioType = rows[0].toLowerCase();
-                    String imgType = rows[1];
-                    Integer maxSize = Integer.parseInt(rows[2]);
-                    
-                    if ("input".equals(ioType)) {
-                        acceptableInputParameters.put(imgType.toUpperCase(), maxSize);
-                    } else if ("output".equals(ioType)) {
-                        acceptableOutputParameters.put(imgType.toUpperCase(), maxSize);
-                    } else {
-                        System.out.println("Invalid ioType: " + ioType);
-                    }
-                } else {
-                    System.out.println("Invalid row format: " + row);
-                }
-            }
-            
+    public static void setAcceptableParameters(File fileName, ConversionEngine conversionEngine) {
+    	// read the configuration file parameters, the image types not supported by the conversion engine are skipped
+        try {
+            acceptableParameters = AcceptableParameters.read(fileName, conversionEngine);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -395,7 +395,7 @@ function convertImage(pathOriginFile, pathTargetFile, originType, targetType) {
                 })
                             
                 // Send the conversion types for the file (when the gRPC client is integrated with the server of Lab01, the file_type_origin and file_type_target will be chosen by the user)
-                call.write({ "meta": {"client_id": clientId, "file_type_origin": originType, "file_type_target": targetType}});
+                call.write({ "meta": {"client_id": clientId, "file_type_origin": originType, "file_type_target": targetType, "file_size": inputImageSize}});
 
                 // Send the file
                 const max_chunk_size = 1024; //1KB